@@ -0,0 +1,85 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+public class Database implements Resource {
+    private String databaseName;
+    private Set<Table> tables;
+    private Map<String, Table> tablesByName;
+    private ResourceCatalog catalog;
+    private long id;
+    private int hash;
+
+    public Database (String databaseName) {
+        this.databaseName = databaseName;
+        this.tables = new HashSet<Table>();
+        this.tablesByName = new HashMap<String, Table>();
+        this.catalog = ResourceCatalog.of(null, ResourceType.DATABASE, databaseName);
+        this.id = catalog.idOf(null, ResourceType.DATABASE, databaseName);
+        this.hash = ResourceCatalog.hash(id);
+    }
+
+    public String getName() {
+        return this.databaseName;
+    }
+
+    /**
+     * @return null, a database is not part of a table
+     */
+    public String getTableName() {
+        return null;
+    }
+
+    public Set<Table> getTables() {
+        return this.tables;
+    }
+
+    public Table getTable(String tableName) {
+        return tablesByName.get(tableName);
+    }
+
+    public void addTable(Table t) {
+        tables.add(t);
+        tablesByName.putIfAbsent(t.getTableName(), t);
+    }
+
+    ResourceCatalog getCatalog() {
+        return this.catalog;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public Resource getParent() {
+        return null;
+    }
+
+    public ResourceType getResourceType() {
+        return ResourceType.DATABASE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null) {
+            return false;
+        } else if (o instanceof Database) {
+            return ((Database) o).getId() == this.id;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Database<database=%s>", databaseName);
+    }
+
+}
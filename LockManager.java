@@ -1,13 +1,48 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.locks.Lock;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Lock Manager handles lock and unlock requests from transactions. The
  * Lock Manager will maintain a hash table that is keyed on the resource
  * being locked. The Lock Manager will also keep a FIFO queue of requests
  * for locks that cannot be immediately granted.
+ *
+ * The hash table is partitioned into stripes, each guarded by its own latch,
+ * so requests on unrelated resources can proceed in parallel. A thread never
+ * holds more than one stripe latch at a time; checks that involve another
+ * resource (the parent, the children of a resource) only look at locks
+ * owned by the calling transaction and are done before the target stripe is
+ * latched.
+ *
+ * IS and IX locks on tables and databases are counted in a per-resource
+ * intent counter without latching the stripe, as long as nobody holds or
+ * waits for a conflicting mode. A conflicting request sets the counter's
+ * slow flag, which sends later IS and IX requests down the latched path,
+ * and waits for the counted holders to drain.
+ *
+ * Resources marked as reader biased, e.g. read-only catalog pages, grant S
+ * the same way: the reader publishes its transaction in one of the
+ * resource's visible reader slots. Any other mode revokes the bias and waits
+ * for the slots to drain; the bias is restored once the resource is only
+ * read again, after a while proportional to how long the revocation lasted.
  */
 public class LockManager {
 
@@ -15,279 +50,2893 @@ public class LockManager {
         S,
         X,
         IS,
-        IX
+        IX,
+        SIX,
+        U
     }
 
-    private HashMap<Resource, ResourceLock> resourceToLock;
+    /**
+     * How the Lock Manager deals with transactions that wait on each other.
+     */
+    public enum DeadlockPolicy {
+        /** Waiting transactions are never aborted by the Lock Manager. */
+        NONE,
+        /** A waits-for graph is checked for cycles whenever a request is queued. */
+        DETECTION,
+        /**
+         * A transaction may only wait for younger transactions (later
+         * timestamp); otherwise it dies, i.e. it is aborted instead of queued.
+         */
+        WAIT_DIE,
+        /**
+         * A transaction wounds (aborts) the younger transactions it would wait
+         * for, and only waits for older ones.
+         */
+        WOUND_WAIT
+    }
+
+    /**
+     * Picks the transaction to abort when a waits-for cycle is found.
+     */
+    public interface VictimPolicy {
+        /**
+         * @param cycle transactions on the cycle, each waiting for the next one
+         * and the last one waiting for the first
+         * @param lockManager that found the cycle
+         * @return the transaction to abort, one of the transactions on the cycle
+         */
+        Transaction selectVictim(List<Transaction> cycle, LockManager lockManager);
+    }
+
+    /** Aborts the transaction with the latest timestamp. */
+    public static final VictimPolicy YOUNGEST = (cycle, lockManager) -> {
+        Transaction victim = cycle.get(0);
+        for (Transaction transaction : cycle) {
+            if (transaction.getTimestamp() > victim.getTimestamp()) {
+                victim = transaction;
+            }
+        }
+        return victim;
+    };
+
+    /** Aborts the transaction holding the fewest locks. */
+    public static final VictimPolicy FEWEST_LOCKS = (cycle, lockManager) -> {
+        Transaction victim = cycle.get(0);
+        int fewest = lockManager.numLocksHeld(victim);
+        for (Transaction transaction : cycle) {
+            int numLocks = lockManager.numLocksHeld(transaction);
+            if (numLocks < fewest) {
+                victim = transaction;
+                fewest = numLocks;
+            }
+        }
+        return victim;
+    };
+
+    /** Bit mask of the intent modes IS and IX, which the intent counters track. */
+    private static final int INTENT_MODES = (1 << LockType.IS.ordinal()) | (1 << LockType.IX.ordinal());
+
+    /** Most empty resource locks a stripe keeps around for reuse. */
+    private static final int MAX_FREE_LOCKS = 64;
+
+    /** Most released requests a stripe keeps around for reuse. */
+    private static final int MAX_FREE_REQUESTS = 64;
+
+    /** Most per resource records a transaction keeps around for reuse. */
+    private static final int MAX_FREE_HOLDINGS = 8;
+
+    /** Fewest intent counters there are before idle ones are swept. */
+    private static final int MIN_INTENT_COUNTERS_SWEEP = 1024;
+
+    /** Most contexts of running transactions without locks one thread keeps. */
+    private static final int IDLE_CONTEXTS_PER_THREAD = 16;
+
+    /**
+     * For each requested lock type (by ordinal), a bit mask of the owned lock
+     * types (1 << ordinal) it conflicts with.
+     */
+    private static final int[] CONFLICTS = new int[LockType.values().length];
+
+    /** Lock types ordered so that a type comes after every type it implies. */
+    private static final LockType[] BY_STRENGTH = {
+        LockType.IS, LockType.IX, LockType.S, LockType.U, LockType.SIX, LockType.X
+    };
+
+    static {
+        for (LockType requestedType : LockType.values()) {
+            for (LockType ownedType : LockType.values()) {
+                if (!matrixCompatible(ownedType, requestedType)) {
+                    CONFLICTS[requestedType.ordinal()] |= 1 << ownedType.ordinal();
+                }
+            }
+        }
+    }
+
+    private Stripe[] stripes;
+    private int stripeMask;
+    private ConcurrentHashMap<Transaction, LockContext> contexts;
+    private WaitsForGraph waitsFor;
+    private volatile DeadlockPolicy deadlockPolicy;
+    private volatile VictimPolicy victimPolicy;
+    private volatile int escalationThreshold;
+    private volatile long lockBudget;
+    private volatile boolean reentrant;
+    private LongAdder totalLocks;
+    private ThreadLocal<IdleContexts> idleContexts;
+    private Set<IdleContextsRef> idleContextsRefs;
+    private ReferenceQueue<IdleContexts> finishedThreads;
+    private ConcurrentHashMap<Resource, IntentCounter> intentCounters;
+    private volatile int intentCountersSweepAt;
+    private volatile boolean intentCountersSweepDue;
+    private AtomicBoolean sweepingIntentCounters;
+    private ConcurrentHashMap<Resource, ReaderBias> readerBiases;
+
+    /**
+     * Creates a Lock Manager with a single stripe, i.e. one latch guarding the
+     * whole lock table.
+     */
+    public LockManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a Lock Manager whose lock table is split into the given number
+     * of stripes. The number is rounded up to the next power of two.
+     * @param numStripes number of independently latched partitions
+     */
+    public LockManager(int numStripes) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("Lock Manager needs at least one stripe");
+        }
+        int size = Integer.highestOneBit(numStripes);
+        if (size < numStripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = size - 1;
+        this.contexts = new ConcurrentHashMap<Transaction, LockContext>();
+        this.waitsFor = new WaitsForGraph();
+        this.deadlockPolicy = DeadlockPolicy.DETECTION;
+        this.victimPolicy = YOUNGEST;
+        this.totalLocks = new LongAdder();
+        this.idleContexts = ThreadLocal.withInitial(this::newIdleContexts);
+        this.idleContextsRefs = ConcurrentHashMap.newKeySet();
+        this.finishedThreads = new ReferenceQueue<IdleContexts>();
+        this.intentCounters = new ConcurrentHashMap<Resource, IntentCounter>();
+        this.intentCountersSweepAt = MIN_INTENT_COUNTERS_SWEEP;
+        this.sweepingIntentCounters = new AtomicBoolean();
+        this.readerBiases = new ConcurrentHashMap<Resource, ReaderBias>();
+    }
+
+    /**
+     * Sets how deadlocks are handled. Should be set before any lock is
+     * requested. Defaults to DETECTION.
+     * @param deadlockPolicy to use from now on
+     */
+    public void setDeadlockPolicy(DeadlockPolicy deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+    }
+
+    /**
+     * Sets which transaction of a waits-for cycle gets aborted. Defaults to
+     * YOUNGEST.
+     * @param victimPolicy to use from now on
+     */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /**
+     * Sets how many page locks a transaction may hold under one table before
+     * they are escalated to a single table lock. 0 (the default) turns this
+     * off. The escalated pages still report as held by holds and
+     * getLockedResources, but no longer count in numLocksHeld.
+     * @param numPages page locks under a table that trigger escalation
+     */
+    public void setEscalationThreshold(int numPages) {
+        this.escalationThreshold = numPages;
+    }
+
+    /**
+     * Sets how many locks may be granted in total before a transaction that
+     * is granted another page lock gets its locks on that page's table
+     * escalated. 0 (the default) turns this off.
+     * @param maxLocks number of granted locks over which escalation kicks in
+     */
+    public void setLockBudget(long maxLocks) {
+        this.lockBudget = maxLocks;
+    }
+
+    /**
+     * Makes locks reentrant: a transaction requesting a mode that the mode it
+     * holds on the resource already implies (e.g. S while holding X) gets it
+     * right away instead of an IllegalArgumentException, and each such
+     * request must be matched by a release before the lock is actually
+     * released. The count is per resource, so it carries over upgrades.
+     * releaseAll drops the locks whatever their count. Off by default.
+     * @param reentrant whether re-acquiring a held mode is counted
+     */
+    public void setReentrant(boolean reentrant) {
+        this.reentrant = reentrant;
+    }
+
+    /**
+     * Marks a page or row as read-mostly, so that S locks on it are granted
+     * without latching its stripe or touching its owners. Other modes get
+     * more expensive on such a resource, as they first have to revoke the
+     * bias and wait for all the readers to leave. Turning it off revokes the
+     * bias for good; readers that got in before still release normally, and
+     * the bias is forgotten once the last of them has left.
+     * @param resource a page or row
+     * @param readerBiased whether S locks on it should take the reader path
+     */
+    public void setReaderBiased(Resource resource, boolean readerBiased) {
+        if (hasIntentCounter(resource)) {
+            throw new IllegalArgumentException("Only pages and rows can be reader biased");
+        }
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            //added and removed under the latch only
+            ReaderBias bias = readerBiases.get(resource);
+            if (bias == null) {
+                if (!readerBiased) {
+                    return;
+                }
+                bias = new ReaderBias(resource);
+                readerBiases.put(resource, bias);
+            }
+            bias.enabled = readerBiased;
+            if (readerBiased) {
+                ResourceLock resourceLock = stripe.locks.get(resource.getId());
+                if (resourceLock == null) {
+                    bias.rebias();
+                } else {
+                    resourceLock.bias = bias;
+                    reopenFastPaths(resourceLock);
+                }
+            } else {
+                bias.revoke();
+                ResourceLock resourceLock = stripe.locks.get(resource.getId());
+                if (forgetReaderBias(bias) && resourceLock != null) {
+                    resourceLock.bias = null;
+                }
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Removes a reader bias that was turned off once its last reader left,
+     * so that it stops costing memory and lookups. Readers that still have
+     * it at hand find it revoked. Must be called with the resource's stripe
+     * latched.
+     * @param bias of a page or row
+     * @return true if the bias was removed
+     */
+    private boolean forgetReaderBias(ReaderBias bias) {
+        if (bias.enabled || bias.hasReaders()) {
+            return false;
+        }
+        readerBiases.remove(bias.resource, bias);
+        return true;
+    }
+
+    /**
+     * @param transaction to look at
+     * @return number of locks currently granted to the transaction
+     */
+    public int numLocksHeld(Transaction transaction) {
+        LockContext context = contexts.get(transaction);
+        return context == null ? 0 : context.numLocks;
+    }
+
+    /**
+     * Returns the resources the transaction currently holds a lock on,
+     * including those covered by an escalated table. Use holds to find out
+     * the type of lock.
+     * @param transaction to look at
+     * @return a copy of the set of locked resources
+     */
+    public Set<Resource> getLockedResources(Transaction transaction) {
+        LockContext context = contexts.get(transaction);
+        if (context == null) {
+            return new HashSet<Resource>();
+        }
+        return context.reportedResources();
+    }
+
+    private Stripe stripeFor(Resource resource) {
+        //resources hash their catalog id into well mixed bits
+        return stripes[(resource.hashCode() >>> 16) & stripeMask];
+    }
+
+    /**
+     * The acquire method will grant the lock if it is compatible. If the lock
+     * is not compatible, then the request will be placed on the requesters
+     * queue. If the transaction already holds a weaker lock on the resource,
+     * the request is an upgrade (S or IX -> SIX, U -> X, ...), and
+     * requesting S while holding IX or the other way round upgrades to SIX.
+     * An update lock (U) can be granted while others hold S, but not while
+     * another transaction holds U, so read-modify-write transactions that
+     * take U and then upgrade to X can't deadlock on each other's upgrade.
+     * With reentrant locks on, requesting a mode that is already implied by
+     * the held one only counts the hold.
+     * @param transaction that is requesting the lock
+     * @param resource that the transaction wants
+     * @param lockType of requested lock
+     */
+    public void acquire(Transaction transaction, Resource resource, LockType lockType)
+            throws IllegalArgumentException {
+        if (enqueue(transaction, resource, lockType, null, null) == null) {
+            escalateIfNeeded(transaction, resource);
+        }
+        return;
+    }
+
+    /**
+     * Same as acquire, but if the lock is not compatible the calling thread is
+     * parked until promote grants the request, instead of leaving it to poll
+     * the transaction status.
+     * @param transaction that is requesting the lock
+     * @param resource that the transaction wants
+     * @param lockType of requested lock
+     * @throws InterruptedException if the thread is interrupted while waiting;
+     * the request is then removed from the requesters queue
+     * @throws TransactionAbortedException if the transaction is aborted to
+     * prevent a deadlock while waiting, or was already aborting
+     */
+    public void acquireBlocking(Transaction transaction, Resource resource, LockType lockType)
+            throws IllegalArgumentException, InterruptedException {
+        Request request = enqueue(transaction, resource, lockType, Thread.currentThread(), null);
+        if (request != null) {
+            await(request, false, 0L);
+        }
+        escalateIfNeeded(transaction, resource);
+        return;
+    }
+
+    /**
+     * Same as acquireBlocking, but waits at most the given time. If the lock
+     * has not been granted by then, the request is removed from the
+     * requesters queue and the requests behind it are promoted.
+     * @param transaction that is requesting the lock
+     * @param resource that the transaction wants
+     * @param lockType of requested lock
+     * @param timeout maximum time to wait
+     * @return true if the lock was granted, false if the wait timed out
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws TransactionAbortedException if the transaction is aborted to
+     * prevent a deadlock while waiting, or was already aborting
+     */
+    public boolean tryAcquire(Transaction transaction, Resource resource, LockType lockType, Duration timeout)
+            throws IllegalArgumentException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Request request = enqueue(transaction, resource, lockType, Thread.currentThread(), null);
+        if (request != null && !await(request, true, deadline)) {
+            return false;
+        }
+        escalateIfNeeded(transaction, resource);
+        return true;
+    }
+
+    /**
+     * Parks the calling thread until its queued request is granted, or backs
+     * the request out on interrupt or when the deadline passes.
+     * @param request queued by the calling thread
+     * @param timed whether the deadline applies
+     * @param deadline in System.nanoTime() units
+     * @return true if the lock was granted, false if the wait timed out
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws TransactionAbortedException if the request was aborted
+     */
+    private boolean await(Request request, boolean timed, long deadline)
+            throws InterruptedException {
+        while (!request.granted) {
+            if (request.aborted) {
+                throw new TransactionAbortedException(request.transaction + " was aborted while waiting for a lock");
+            }
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    if (cancel(request, false)) {
+                        return false;
+                    }
+                    //granted or aborted in the meantime
+                    continue;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                if (cancel(request, false)) {
+                    throw new InterruptedException();
+                }
+                //granted or aborted before we could back out
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as acquire, but returns a future that is completed once the lock is
+     * granted, so the caller does not need a thread per waiting transaction.
+     * Cancelling the future (or completing it exceptionally, e.g. through
+     * orTimeout) removes the request from the requesters queue. If the
+     * transaction is aborted to prevent a deadlock, the future completes with a
+     * TransactionAbortedException. Illegal requests, and requests from a
+     * transaction that is already aborting, are rejected right away, not
+     * through the future.
+     * @param transaction that is requesting the lock
+     * @param resource that the transaction wants
+     * @param lockType of requested lock
+     * @return future completed when the lock is granted
+     */
+    public CompletableFuture<Void> acquireAsync(Transaction transaction, Resource resource, LockType lockType)
+            throws IllegalArgumentException {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        Request request = enqueue(transaction, resource, lockType, null, future);
+        if (request == null) {
+            escalateIfNeeded(transaction, resource);
+            future.complete(null);
+        } else {
+            future.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    cancel(request, false);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Grants the lock if it is compatible, otherwise places the request on the
+     * requesters queue and puts the transaction to sleep. With deadlock
+     * detection on, a queued request is then checked for a waits-for cycle;
+     * with wait-die or wound-wait, the timestamps of the transactions it
+     * would wait for decide whether it waits, dies or wounds them.
+     * @param transaction that is requesting the lock
+     * @param resource that the transaction wants
+     * @param lockType of requested lock
+     * @param waiter thread to unpark when the request is granted, or null
+     * @param future to complete when the request is granted, or null
+     * @return the queued request, or null if the lock was granted right away
+     */
+    private Request enqueue(Transaction transaction, Resource resource, LockType lockType,
+                            Thread waiter, CompletableFuture<Void> future) {
+
+        //all the illegal argument exceptions
+        if (transaction.getStatus() == Transaction.Status.Waiting) {
+            throw new IllegalArgumentException("Transaction is blocked");
+        }
+        if (transaction.getStatus() == Transaction.Status.Aborting) {
+            throw new TransactionAbortedException(transaction + " is aborting and can't take new locks");
+        }
+
+        if (reentrant) {
+            LockContext context = contexts.get(transaction);
+            if (context != null && context.reenter(resource, lockType)) {
+                return null;
+            }
+        }
+
+        if (resource.getResourceType() == Resource.ResourceType.ROW
+                && (lockType == LockType.IS || lockType == LockType.IX || lockType == LockType.SIX)) {
+            throw new IllegalArgumentException("Transaction requesting intent lock on row");
+        }
+        Resource parent = resource.getParent();
+        if (parent != null) {
+            Table table = tableAbove(resource);
+            LockContext context = contexts.get(transaction);
+            if (table != null && context != null && covers(context.escalatedMode(table), lockType)) {
+                //the escalated table lock already covers the resource
+                context.acquireCovered(resource, lockType, reentrant);
+                return null;
+            }
+            checkParentLock(transaction, parent, lockType);
+        }
+
+        if ((lockType == LockType.IS || lockType == LockType.IX) && hasIntentCounter(resource)
+                && tryAcquireIntent(transaction, resource, lockType)) {
+            return null;
+        }
+        if (lockType == LockType.S && !readerBiases.isEmpty()) {
+            ReaderBias bias = readerBiases.get(resource);
+            if (bias != null && tryAcquireRead(transaction, resource, bias)) {
+                return null;
+            }
+        }
+
+        DeadlockPolicy policy = deadlockPolicy;
+        boolean dies = false;
+        ArrayList<Transaction> wounded = null;
+        Request request;
+        ResourceLock resourceLock = null;
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            resourceLock = stripe.locks.get(resource.getId());
+            if (resourceLock == null) {
+                resourceLock = stripe.newLock();
+            }
+            if (hasIntentCounter(resource)) {
+                if (resourceLock.intents == null) {
+                    resourceLock.intents = intentCounterOf(resource);
+                }
+                adoptIntentHold(stripe, resourceLock, transaction, resource);
+                if (lockType != LockType.IS && lockType != LockType.IX) {
+                    //no more IS or IX without the latch until this request is gone
+                    resourceLock.intents.setSlow();
+                }
+            }
+            if (resourceLock.bias == null && !readerBiases.isEmpty()) {
+                resourceLock.bias = readerBiases.get(resource);
+            }
+            if (resourceLock.bias != null) {
+                adoptReaderHold(stripe, resourceLock, transaction, resource);
+                if (lockType != LockType.S) {
+                    resourceLock.bias.revoke();
+                }
+            }
+
+            //fast holds were adopted above, so whatever the context says is
+            //held is one of the owners and the list is only searched then
+            Request lockBeforeUpgrade = null;
+            LockContext held = contexts.get(transaction);
+            LockType heldMode = held == null ? null : held.heldMode(resource);
+            if (heldMode != null) {
+                if (heldMode.equals(lockType)) {
+                    throw new IllegalArgumentException("Transaction already holds this type of lock");
+                }
+                if (implies(heldMode, lockType)) {
+                    throw new IllegalArgumentException(String.format(
+                            "Transaction trying to downgrade %s -> %s", heldMode, lockType));
+                }
+                //going to upgrade this later, S + IX is upgraded to SIX
+                ArrayList<Request> lockOwners = resourceLock.lockOwners;
+                for (int i = 0; i < lockOwners.size(); i++) {
+                    if (lockOwners.get(i).transaction.equals(transaction)) {
+                        lockBeforeUpgrade = lockOwners.get(i);
+                        break;
+                    }
+                }
+            }
+
+            request = stripe.newRequest(transaction, lockType, resource);
+            if (lockBeforeUpgrade != null) {
+                request.lockType = supremum(lockBeforeUpgrade.lockType, lockType);
+                request.upgradeFrom = lockBeforeUpgrade;
+            }
+
+            boolean prevention = policy == DeadlockPolicy.WAIT_DIE || policy == DeadlockPolicy.WOUND_WAIT;
+            if (prevention && lockBeforeUpgrade != null && resourceLock.hasRequesters()) {
+                //the upgrade goes ahead of the queue, the requesters that did
+                //not account for it have to be checked against it now
+                wounded = new ArrayList<Transaction>();
+                if (checkJumpedRequesters(resourceLock, request, policy, wounded)) {
+                    request.aborted = true;
+                    transaction.abort();
+                    dies = true;
+                    return request;
+                }
+            }
+            if (compatible(resourceLock, request)
+                    && !(prevention && lockBeforeUpgrade == null && blocksRequesters(resourceLock, request))) {
+                if (lockBeforeUpgrade != null) {
+                    resourceLock.removeOwner(lockBeforeUpgrade);
+                    stripe.freeRequest(lockBeforeUpgrade);
+                    request.upgradeFrom = null;
+                }
+                resourceLock.addOwner(request);
+                request.granted = true;
+                //nobody else ever sees a request that is granted right away,
+                //so it can go back to the pool once it is released
+                request.recyclable = true;
+                if (lockBeforeUpgrade == null) {
+                    contextOf(transaction).addHeld(request);
+                } else {
+                    contextOf(transaction).convertHeld(request);
+                }
+                if (resourceLock.hasRequesters()) {
+                    //the new owner may block requests that are already queued
+                    refreshWaitsFor(resourceLock);
+                }
+                stripe.locks.put(resource.getId(), resourceLock);
+                return null;
+            }
+
+            request.waiter = waiter;
+            request.future = future;
+            if (policy == DeadlockPolicy.WAIT_DIE || policy == DeadlockPolicy.WOUND_WAIT) {
+                for (Transaction blocker : blockers(resourceLock, request, lockBeforeUpgrade != null)) {
+                    if (policy == DeadlockPolicy.WAIT_DIE && blocker.getTimestamp() < transaction.getTimestamp()) {
+                        dies = true;
+                        break;
+                    }
+                    if (policy == DeadlockPolicy.WOUND_WAIT && blocker.getTimestamp() > transaction.getTimestamp()) {
+                        if (wounded == null) {
+                            wounded = new ArrayList<Transaction>();
+                        }
+                        wounded.add(blocker);
+                    }
+                }
+            }
+            if (dies) {
+                request.aborted = true;
+                transaction.abort();
+                return request;
+            }
+
+            //published before the status is checked, so whoever wounds the
+            //transaction from now on finds the request and cancels it
+            LockContext context = contextOf(transaction);
+            context.waitingFor = request;
+            if (!transaction.sleep()) {
+                //wounded since it came in, it must not wait holding its locks
+                context.waitingFor = null;
+                request.aborted = true;
+                dies = true;
+                return request;
+            }
+            //upgrades go ahead of everything that is already queued
+            resourceLock.addRequester(request, lockBeforeUpgrade != null);
+            if (policy == DeadlockPolicy.DETECTION) {
+                //the owners didn't change, so only the new request and the one
+                //now right behind it get new edges
+                setWaitsFor(resourceLock, request);
+                if (request.nextRequester != null) {
+                    setWaitsFor(resourceLock, request.nextRequester);
+                }
+            }
+            stripe.locks.put(resource.getId(), resourceLock);
+        } finally {
+            if (resourceLock != null) {
+                reopenFastPaths(resourceLock);
+            }
+            stripe.latch.unlock();
+            if (dies && future != null) {
+                future.completeExceptionally(new TransactionAbortedException(
+                        transaction + " was aborted instead of waiting for a lock"));
+            }
+            //also when an upgrade was granted right away ahead of younger
+            //requesters that die for it
+            if (!dies && wounded != null) {
+                for (Transaction victim : wounded) {
+                    abortTransaction(victim);
+                }
+            }
+        }
+
+        if (policy == DeadlockPolicy.DETECTION) {
+            detectDeadlock(transaction);
+        }
+        return request.granted ? null : request;
+    }
+
+    /**
+     * With wait-die and wound-wait, a request that would block one that is
+     * already queued isn't granted ahead of it. The queued request only
+     * checked the transactions that were there when it came in, so a new
+     * owner could make it wait on a transaction the policy never saw.
+     * @return true if a queued request of another transaction conflicts
+     */
+    private boolean blocksRequesters(ResourceLock resourceLock, Request request) {
+        for (Request requester = resourceLock.firstRequester; requester != null;
+                requester = requester.nextRequester) {
+            if (!requester.transaction.equals(request.transaction) && !checkMatrixCompatibility(requester, request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies wait-die or wound-wait to the requesters an upgrade goes ahead
+     * of, since they now wait for it. With wait-die the younger ones die and
+     * are added to the victims; with wound-wait an older one would wound the
+     * upgrading transaction, so the upgrade fails instead.
+     * @return true if the upgrading transaction must abort
+     */
+    private boolean checkJumpedRequesters(ResourceLock resourceLock, Request request, DeadlockPolicy policy,
+                                          List<Transaction> victims) {
+        long timestamp = request.transaction.getTimestamp();
+        for (Request requester = resourceLock.firstRequester; requester != null;
+                requester = requester.nextRequester) {
+            if (requester.transaction.equals(request.transaction)) {
+                continue;
+            }
+            if (policy == DeadlockPolicy.WOUND_WAIT && requester.transaction.getTimestamp() < timestamp) {
+                return true;
+            }
+            if (policy == DeadlockPolicy.WAIT_DIE && requester.transaction.getTimestamp() > timestamp) {
+                victims.add(requester.transaction);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the other transactions a request would wait for if it was queued
+     * now: the owners it conflicts with and, unless it jumps the queue as an
+     * upgrade, everything already queued. Must be called with the resource's
+     * stripe latched.
+     * @param resourceLock the request is for
+     * @param request that is not compatible
+     * @param upgrade whether the request goes to the head of the queue
+     * @return transactions the request would wait for
+     */
+    private List<Transaction> blockers(ResourceLock resourceLock, Request request, boolean upgrade) {
+        ArrayList<Transaction> blockers = new ArrayList<Transaction>();
+        for (Request owner : resourceLock.lockOwners) {
+            if (!owner.transaction.equals(request.transaction) && !checkMatrixCompatibility(owner, request)) {
+                blockers.add(owner.transaction);
+            }
+        }
+        addUnlatchedBlockers(resourceLock, request, blockers);
+        if (!upgrade) {
+            for (Request requester = resourceLock.firstRequester; requester != null;
+                    requester = requester.nextRequester) {
+                if (!requester.transaction.equals(request.transaction)) {
+                    blockers.add(requester.transaction);
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Moves a transaction to Aborting and cancels the request it is waiting
+     * on, if any. The locks it was already granted are left for it to
+     * release.
+     * @param victim transaction to abort
+     * @return true if a request the victim was waiting on was cancelled
+     */
+    private boolean abortTransaction(Transaction victim) {
+        //aborted before looking for its request: a victim that is about to
+        //queue either sees Aborting or has already published the request
+        victim.abort();
+        LockContext context = contexts.get(victim);
+        Request request = context == null ? null : context.waitingFor;
+        return request != null && cancel(request, true);
+    }
+
+    /**
+     * Looks for waits-for cycles through a transaction that just started
+     * waiting. Any new cycle has to go through it, so the search only visits
+     * transactions reachable from it. The new request may close several
+     * cycles at once, so the victim picked by the victim policy is aborted
+     * and the search repeated until no cycle is left, or until the
+     * transaction itself is the victim, which breaks all of them.
+     * @param transaction that was just put to sleep
+     */
+    private void detectDeadlock(Transaction transaction) {
+        List<Transaction> cycle;
+        Transaction stale = null;
+        while ((cycle = waitsFor.findCycle(transaction)) != null) {
+            Transaction victim = victimPolicy.selectVictim(cycle, this);
+            if (abortTransaction(victim)) {
+                stale = null;
+            } else if (victim.equals(stale)) {
+                //the victim isn't waiting anymore but its edges are still
+                //there, nothing more can be done from here
+                return;
+            } else {
+                //it was granted or cancelled meanwhile, look again
+                stale = victim;
+            }
+            if (victim.equals(transaction)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the bookkeeping of a transaction, creating it on its first
+     * request.
+     * @param transaction to look up
+     * @return the transaction's lock context
+     */
+    private LockContext contextOf(Transaction transaction) {
+        LockContext context = contexts.get(transaction);
+        while (true) {
+            if (context == null) {
+                context = contexts.computeIfAbsent(transaction, t -> new LockContext(t));
+            }
+            int state = context.state.get();
+            if (state == LockContext.IN_USE
+                    || (state == LockContext.IDLE && context.state.compareAndSet(LockContext.IDLE, LockContext.IN_USE))) {
+                return context;
+            }
+            //evicted by the thread that kept it idle, don't use it anymore
+            contexts.remove(transaction, context);
+            context = null;
+        }
+    }
+
+    /**
+     * Called once a transaction neither holds nor waits for any lock. The
+     * context of a running transaction is kept, since the transaction is
+     * likely to lock again and creating the context anew would allocate on
+     * every acquire. Each thread keeps the last IDLE_CONTEXTS_PER_THREAD
+     * contexts it left idle and drops the oldest one beyond that, so keeping
+     * a context touches nothing shared. Finished transactions lose their
+     * context right away, and releaseAll always drops it.
+     * @param transaction whose last lock was released
+     * @param context of the transaction
+     * @param keep whether the context may be kept
+     */
+    private void retire(Transaction transaction, LockContext context, boolean keep) {
+        if (context.numLocks != 0 || context.waitingFor != null) {
+            return;
+        }
+        if (keep && transaction.getStatus() == Transaction.Status.Running) {
+            if (context.state.get() == LockContext.IDLE) {
+                return;
+            }
+            context.state.set(LockContext.IDLE);
+            IdleContexts idle = idleContexts.get();
+            if (context.keptIn != idle.contexts) {
+                LockContext oldest = idle.contexts[idle.next];
+                if (oldest != null) {
+                    evictIdle(oldest, idle.contexts);
+                }
+                idle.contexts[idle.next] = context;
+                idle.next = (idle.next + 1) % IDLE_CONTEXTS_PER_THREAD;
+                context.keptIn = idle.contexts;
+            }
+            return;
+        }
+        contexts.remove(transaction, context);
+    }
+
+    /**
+     * Drops a context kept by a thread if it is still idle. A transaction
+     * that picks it up at the same time sees it evicted and gets a new one.
+     * @param context to drop
+     * @param keptIn the idle contexts of the thread that kept it
+     */
+    private void evictIdle(LockContext context, LockContext[] keptIn) {
+        if (context.keptIn != keptIn) {
+            //another thread kept it since
+            return;
+        }
+        context.keptIn = null;
+        if (context.state.compareAndSet(LockContext.IDLE, LockContext.EVICTED)) {
+            contexts.remove(context.transaction, context);
+        }
+    }
+
+    /**
+     * Creates a thread's idle contexts, and drops those of the threads that
+     * are gone.
+     */
+    private IdleContexts newIdleContexts() {
+        IdleContextsRef finished;
+        while ((finished = (IdleContextsRef) finishedThreads.poll()) != null) {
+            idleContextsRefs.remove(finished);
+            for (LockContext context : finished.contexts) {
+                if (context != null) {
+                    evictIdle(context, finished.contexts);
+                }
+            }
+        }
+        IdleContexts idle = new IdleContexts();
+        idleContextsRefs.add(new IdleContextsRef(idle, finishedThreads));
+        return idle;
+    }
+
+    /**
+     * The contexts one thread's transactions left idle, as a ring buffer
+     * whose next slot holds the oldest one. Only that thread uses it.
+     */
+    private static class IdleContexts {
+        private final LockContext[] contexts = new LockContext[IDLE_CONTEXTS_PER_THREAD];
+        private int next;
+    }
+
+    /**
+     * Enqueued once the thread of some idle contexts is gone, so that the
+     * next thread to start locking drops them.
+     */
+    private static class IdleContextsRef extends WeakReference<IdleContexts> {
+        private final LockContext[] contexts;
+
+        IdleContextsRef(IdleContexts idle, ReferenceQueue<IdleContexts> queue) {
+            super(idle, queue);
+            this.contexts = idle.contexts;
+        }
+    }
+
+    /**
+     * @param resource to lock
+     * @return true if IS and IX on the resource can be granted through its
+     * intent counter, which is the case for tables and databases
+     */
+    private static boolean hasIntentCounter(Resource resource) {
+        return resource.getResourceType() == Resource.ResourceType.TABLE
+                || resource.getResourceType() == Resource.ResourceType.DATABASE;
+    }
+
+    /**
+     * Drops the intent counters that nothing is counted in and whose
+     * resource has no resource lock, once there are twice as many counters
+     * as after the last sweep. Counters are kept across a resource lock
+     * being reclaimed and locked again, so that locking the same table over
+     * and over doesn't allocate. Must be called with no stripe latched.
+     */
+    private void sweepIntentCounters() {
+        if (!intentCountersSweepDue || !sweepingIntentCounters.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            intentCountersSweepDue = false;
+            for (IntentCounter counter : intentCounters.values()) {
+                if (!counter.isIdle()) {
+                    continue;
+                }
+                Stripe stripe = stripeFor(counter.resource);
+                stripe.latch.lock();
+                try {
+                    if (stripe.locks.get(counter.resource.getId()) == null) {
+                        retireIntentCounter(counter);
+                    }
+                } finally {
+                    stripe.latch.unlock();
+                }
+            }
+            intentCountersSweepAt = Math.max(MIN_INTENT_COUNTERS_SWEEP, 2 * intentCounters.size());
+        } finally {
+            sweepingIntentCounters.set(false);
+        }
+    }
+
+    /**
+     * Removes an intent counter that nothing is counted in and that isn't
+     * slow. A transaction that looked it up before sees it retired and takes
+     * a new one. Must be called with the resource's stripe latched, while
+     * the resource has no resource lock.
+     * @param counter of a table or database
+     */
+    private void retireIntentCounter(IntentCounter counter) {
+        if (counter.retire()) {
+            intentCounters.remove(counter.resource, counter);
+        }
+    }
+
+    private IntentCounter intentCounterOf(Resource resource) {
+        IntentCounter counter = intentCounters.get(resource);
+        if (counter == null) {
+            counter = intentCounters.computeIfAbsent(resource, r -> new IntentCounter(r));
+            if (intentCounters.size() >= intentCountersSweepAt) {
+                //swept by the next release, which runs without a latch
+                intentCountersSweepDue = true;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Grants IS or IX without latching the resource's stripe, by counting the
+     * holder in the resource's intent counter. This only works while the
+     * counter's slow flag is clear, i.e. nobody holds or waits for a mode
+     * that conflicts with IS or IX, and while the transaction doesn't hold a
+     * lock on the resource yet, since upgrades need the owners.
+     * @param transaction that is requesting the lock
+     * @param resource a table or database
+     * @param lockType IS or IX
+     * @return true if the lock was granted, false if the request has to take
+     * the latched path
+     */
+    private boolean tryAcquireIntent(Transaction transaction, Resource resource, LockType lockType) {
+        LockContext context = contextOf(transaction);
+        if (context.numHeld(resource) > 0) {
+            return false;
+        }
+        IntentCounter counter = intentCounters.get(resource);
+        while (true) {
+            if (counter == null) {
+                counter = intentCounterOf(resource);
+            }
+            //the hold is recorded before it is counted, so that whoever sets the
+            //slow flag and then looks for the holders can't miss a counted one
+            context.addIntentHeld(resource, lockType);
+            if (counter.tryAcquire(lockType)) {
+                break;
+            }
+            context.removeIntentHeld(resource);
+            if (!counter.isRetired()) {
+                return false;
+            }
+            //dropped while idle since it was looked up, try the new one
+            intentCounters.remove(resource, counter);
+            counter = null;
+        }
+        context.confirmIntentHeld(resource);
+        if (counter.isSlow()) {
+            //a conflicting request came in meanwhile and may have looked for
+            //the holders before this one was confirmed
+            syncWithUnlatchedHolders(resource, transaction, lockType);
+        }
+        return true;
+    }
+
+    /**
+     * Grants S on a reader biased resource by publishing the transaction in
+     * one of its visible reader slots, without latching the stripe. Fails if
+     * the bias is revoked, if the slots near the thread's are taken, or if
+     * the transaction already holds a lock on the resource.
+     * @param transaction that is requesting the lock
+     * @param resource a reader biased page or row
+     * @param bias of the resource
+     * @return true if the lock was granted, false if the request has to take
+     * the latched path
+     */
+    private boolean tryAcquireRead(Transaction transaction, Resource resource, ReaderBias bias) {
+        if (!bias.biased) {
+            return false;
+        }
+        LockContext context = contextOf(transaction);
+        if (context.numHeld(resource) > 0) {
+            return false;
+        }
+        int slot = bias.tryAcquire(transaction);
+        if (slot == ReaderBias.BACKED_OUT) {
+            //a writer revoked the bias meanwhile and may be waiting for the slot
+            syncWithUnlatchedHolders(resource, null, null);
+        }
+        if (slot < 0) {
+            return false;
+        }
+        context.addReaderHeld(resource, bias, slot);
+        return true;
+    }
+
+    /**
+     * Releases a lock held without latching the resource's stripe, either
+     * through its intent counter or through one of its reader slots.
+     * @param transaction holding the lock
+     * @param context of the transaction
+     * @param resource being released
+     */
+    private void releaseUnlatched(Transaction transaction, LockContext context, Resource resource) {
+        ReaderBias bias = context.readerBias(resource);
+        if (bias == null) {
+            releaseIntent(transaction, context, resource);
+        } else if (bias.release(context.removeReaderHeld(resource))) {
+            syncWithUnlatchedHolders(resource, null, null);
+        }
+    }
+
+    /**
+     * Releases an IS or IX lock held through the resource's intent counter.
+     * @param transaction holding the lock
+     * @param context of the transaction
+     * @param resource a table or database
+     */
+    private void releaseIntent(Transaction transaction, LockContext context, Resource resource) {
+        LockType lockType = context.fastMode(resource);
+        //forgotten before it is uncounted, so no new waits-for edge points at
+        //a transaction that no longer holds the lock
+        context.removeIntentHeld(resource);
+        if (intentCounters.get(resource).release(lockType)) {
+            syncWithUnlatchedHolders(resource, transaction, null);
+        }
+    }
+
+    /**
+     * Promotes the requesters of a resource and updates their waits-for
+     * edges after its intent counter or reader slots changed while the fast
+     * path was closed. When only an intent lock was released and nothing
+     * could be promoted, the requesters just stop waiting for its holder.
+     * @param resource whose unlatched holders changed
+     * @param transaction whose intent lock was counted or uncounted, or null
+     * if a reader slot changed
+     * @param intentMode the transaction now holds, or null if it released it
+     */
+    private void syncWithUnlatchedHolders(Resource resource, Transaction transaction, LockType intentMode) {
+        Request granted = null;
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            ResourceLock resourceLock = stripe.locks.get(resource.getId());
+            if (resourceLock == null) {
+                IntentCounter counter = intentCounters.get(resource);
+                if (counter != null) {
+                    counter.clearSlow();
+                }
+                ReaderBias bias = transaction == null ? readerBiases.get(resource) : null;
+                if (bias != null) {
+                    forgetReaderBias(bias);
+                }
+                return;
+            }
+            if (resourceLock.bias != null && forgetReaderBias(resourceLock.bias)) {
+                resourceLock.bias = null;
+            }
+            IntentCounter counter = resourceLock.intents;
+            if (transaction != null && counter != null && counter.holders != null) {
+                if (intentMode != null) {
+                    counter.holders.put(transaction, intentMode);
+                } else {
+                    counter.holders.remove(transaction);
+                }
+            }
+            granted = promote(resourceLock);
+            if (granted != null || transaction == null || intentMode != null) {
+                refreshWaitsFor(resourceLock);
+            } else if (deadlockPolicy == DeadlockPolicy.DETECTION) {
+                //the owners and the queue are unchanged, only the edges to the
+                //released holder are stale
+                for (Request requester = resourceLock.firstRequester; requester != null;
+                        requester = requester.nextRequester) {
+                    waitsFor.removeEdge(requester.transaction, transaction);
+                }
+            }
+            reopenFastPaths(resourceLock);
+            stripe.reclaim(resource.getId(), resourceLock);
+        } finally {
+            stripe.latch.unlock();
+            signal(granted);
+        }
+    }
+
+    /**
+     * Turns the transaction's IS or IX lock held through the intent counter,
+     * if any, into a regular owner, so that it can be upgraded or escalated.
+     * Must be called with the resource's stripe latched.
+     * @param stripe of the resource
+     * @param resourceLock of the resource, with its intent counter set
+     * @param transaction that may hold an intent lock on the resource
+     * @param resource a table or database
+     */
+    private void adoptIntentHold(Stripe stripe, ResourceLock resourceLock, Transaction transaction,
+                                 Resource resource) {
+        LockContext context = contexts.get(transaction);
+        LockType intentMode = context == null ? null : context.fastMode(resource);
+        if (intentMode == null) {
+            return;
+        }
+        Request owner = stripe.newRequest(transaction, intentMode, resource);
+        owner.granted = true;
+        owner.recyclable = true;
+        resourceLock.addOwner(owner);
+        stripe.locks.put(resource.getId(), resourceLock);
+        context.adoptIntentHeld(resource);
+        resourceLock.intents.release(intentMode);
+        if (resourceLock.intents.holders != null) {
+            resourceLock.intents.holders.remove(transaction);
+        }
+    }
+
+    /**
+     * Turns the transaction's S lock held through a reader slot, if any, into
+     * a regular owner, so that it can be upgraded. Must be called with the
+     * resource's stripe latched.
+     * @param stripe of the resource
+     * @param resourceLock of the resource, with its reader bias set
+     * @param transaction that may hold a reader slot on the resource
+     * @param resource a reader biased page or row
+     */
+    private void adoptReaderHold(Stripe stripe, ResourceLock resourceLock, Transaction transaction,
+                                 Resource resource) {
+        LockContext context = contexts.get(transaction);
+        int slot = context == null ? -1 : context.adoptReaderHeld(resource);
+        if (slot < 0) {
+            return;
+        }
+        Request owner = stripe.newRequest(transaction, LockType.S, resource);
+        owner.granted = true;
+        owner.recyclable = true;
+        resourceLock.addOwner(owner);
+        stripe.locks.put(resource.getId(), resourceLock);
+        resourceLock.bias.release(slot);
+    }
+
+    /**
+     * Adds the transactions holding a lock that conflicts with the request
+     * without being owners: IS or IX through the resource's intent counter,
+     * and S through its reader slots. The intent holders are looked up in
+     * the contexts once after the counter goes slow and then kept up to date
+     * by the holders that race with it and by releases. Must be called with
+     * the resource's stripe latched.
+     * @param resourceLock the request is for
+     * @param request that may be blocked
+     * @param blockers to add the transactions to
+     */
+    private void addUnlatchedBlockers(ResourceLock resourceLock, Request request, List<Transaction> blockers) {
+        if (resourceLock.bias != null && (CONFLICTS[request.lockType.ordinal()] & (1 << LockType.S.ordinal())) != 0) {
+            resourceLock.bias.addReaders(request.transaction, blockers);
+        }
+        if ((resourceLock.intentModes() & CONFLICTS[request.lockType.ordinal()]) == 0) {
+            return;
+        }
+        IntentCounter counter = resourceLock.intents;
+        HashMap<Transaction, LockType> holders = counter.holders;
+        if (holders == null) {
+            holders = new HashMap<Transaction, LockType>();
+            for (Map.Entry<Transaction, LockContext> entry : contexts.entrySet()) {
+                LockType intentMode = entry.getValue().fastMode(counter.resource);
+                if (intentMode != null) {
+                    holders.put(entry.getKey(), intentMode);
+                }
+            }
+            if (counter.isSlow()) {
+                //nobody is counted without the latch from now on
+                counter.holders = holders;
+            }
+        }
+        for (Map.Entry<Transaction, LockType> holder : holders.entrySet()) {
+            if (!holder.getKey().equals(request.transaction) && !matrixCompatible(holder.getValue(), request.lockType)) {
+                blockers.add(holder.getKey());
+            }
+        }
+    }
+
+    /**
+     * Lets IS and IX on the resource go through its intent counter again once
+     * nobody holds or waits for another mode, and S through its reader slots
+     * once nobody holds or waits for anything but S. Must be called with the
+     * resource's stripe latched.
+     * @param resourceLock whose owners or requesters changed
+     */
+    private void reopenFastPaths(ResourceLock resourceLock) {
+        if (resourceLock.hasRequesters()) {
+            return;
+        }
+        if (resourceLock.intents != null && (resourceLock.grantedModes & ~INTENT_MODES) == 0) {
+            resourceLock.intents.clearSlow();
+        }
+        if (resourceLock.bias != null && (resourceLock.grantedModes & ~(1 << LockType.S.ordinal())) == 0) {
+            resourceLock.bias.rebias();
+        }
+    }
+
+    /**
+     * Recomputes the waits-for edges of every request queued on a resource,
+     * after its owners changed. Must be called with the resource's stripe
+     * latched.
+     * @param resourceLock whose owners changed
+     */
+    private void refreshWaitsFor(ResourceLock resourceLock) {
+        if (deadlockPolicy != DeadlockPolicy.DETECTION) {
+            return;
+        }
+        for (Request requester = resourceLock.firstRequester; requester != null;
+                requester = requester.nextRequester) {
+            setWaitsFor(resourceLock, requester);
+        }
+    }
+
+    /**
+     * Computes the waits-for edges of one queued request: it waits for the
+     * owners it conflicts with, and for the request right in front of it since
+     * the queue is granted in order. Must be called with the resource's stripe
+     * latched.
+     * @param resourceLock the request is queued on
+     * @param requester queued request
+     */
+    private void setWaitsFor(ResourceLock resourceLock, Request requester) {
+        ArrayList<Transaction> blockers = new ArrayList<Transaction>();
+        for (int i = 0; i < resourceLock.lockOwners.size(); i++) {
+            Request owner = resourceLock.lockOwners.get(i);
+            if (!owner.transaction.equals(requester.transaction)
+                    && !checkMatrixCompatibility(owner, requester)) {
+                blockers.add(owner.transaction);
+            }
+        }
+        addUnlatchedBlockers(resourceLock, requester, blockers);
+        Request previous = requester.prevRequester;
+        if (previous != null && !previous.transaction.equals(requester.transaction)) {
+            blockers.add(previous.transaction);
+        }
+        waitsFor.setEdges(requester.transaction, blockers);
+    }
+
+    /**
+     * Takes a request that has not been granted yet off the requesters queue,
+     * and lets the requests behind it be promoted. An aborted request moves its
+     * transaction to Aborting and its waiter is told about it; otherwise the
+     * transaction is running again.
+     * @param request to cancel
+     * @param abort whether the transaction is being aborted
+     * @return true if the request was removed, false if it had already been
+     * granted or cancelled
+     */
+    private boolean cancel(Request request, boolean abort) {
+        Request granted = null;
+        boolean cancelled = false;
+        Stripe stripe = stripeFor(request.resource);
+        stripe.latch.lock();
+        try {
+            if (request.granted || request.aborted || request.cancelled) {
+                return false;
+            }
+            ResourceLock resourceLock = stripe.locks.get(request.resource.getId());
+            resourceLock.removeRequester(request);
+            stopWaiting(request);
+            if (abort) {
+                request.aborted = true;
+                request.transaction.abort();
+            } else {
+                request.cancelled = true;
+                request.transaction.wake();
+            }
+            granted = promote(resourceLock);
+            refreshWaitsFor(resourceLock);
+            reopenFastPaths(resourceLock);
+            stripe.reclaim(request.resource.getId(), resourceLock);
+            cancelled = true;
+            return true;
+        } finally {
+            stripe.latch.unlock();
+            signal(granted);
+            if (cancelled && abort) {
+                if (request.waiter != null) {
+                    LockSupport.unpark(request.waiter);
+                }
+                if (request.future != null) {
+                    request.future.completeExceptionally(new TransactionAbortedException(
+                            request.transaction + " was aborted while waiting for a lock"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the bookkeeping of a request that leaves the requesters queue.
+     * Must be called with the resource's stripe latched.
+     * @param request that is no longer waiting
+     */
+    private void stopWaiting(Request request) {
+        LockContext context = contexts.get(request.transaction);
+        if (context != null && context.waitingFor == request) {
+            context.waitingFor = null;
+        }
+        waitsFor.remove(request.transaction);
+    }
+
+    /**
+     * Escalates the transaction's page locks under the table above the
+     * resource it was just granted, if it holds more of them than the
+     * escalation threshold or if the lock budget is exceeded.
+     * @param transaction that was granted a lock
+     * @param resource it was granted
+     */
+    private void escalateIfNeeded(Transaction transaction, Resource resource) {
+        int threshold = escalationThreshold;
+        long budget = lockBudget;
+        if (threshold <= 0 && budget <= 0) {
+            return;
+        }
+        Table table = tableAbove(resource);
+        LockContext context = contexts.get(transaction);
+        if (table == null || context == null || context.numChildrenHeld(table) == 0) {
+            return;
+        }
+        if ((threshold > 0 && context.numChildrenHeld(table) >= threshold)
+                || (budget > 0 && totalLocks.sum() > budget)) {
+            if (!context.escalationDeferred(table) && !escalate(transaction, context, table)) {
+                context.deferEscalation(table);
+            }
+        }
+    }
+
+    /**
+     * Converts the transaction's IS, IX or SIX lock on the table into S or X and
+     * then drops its locks on the resources below the table, deepest first,
+     * which the table lock now covers. Later requests below the table are
+     * granted without a lock. The conversion never waits: if another owner of
+     * the table conflicts with the stronger lock, the locks are simply kept.
+     * @param transaction whose locks are escalated
+     * @param context of the transaction
+     * @param table whose page locks are escalated
+     * @return true if the locks were escalated
+     */
+    private boolean escalate(Transaction transaction, LockContext context, Table table) {
+        LockType escalatedType = LockType.S;
+        ResourceLock tableLock = null;
+        Stripe stripe = stripeFor(table);
+        stripe.latch.lock();
+        try {
+            tableLock = stripe.locks.get(table.getId());
+            if (tableLock == null) {
+                //the table is only held through its intent counter
+                tableLock = stripe.newLock();
+            }
+            if (tableLock.intents == null) {
+                tableLock.intents = intentCounterOf(table);
+            }
+            adoptIntentHold(stripe, tableLock, transaction, table);
+            tableLock.intents.setSlow();
+            for (Request owner : tableLock.lockOwners) {
+                if (owner.transaction.equals(transaction)) {
+                    if (owner.lockType == LockType.S || owner.lockType == LockType.X || owner.lockType == LockType.U) {
+                        return false;
+                    }
+                    if (owner.lockType == LockType.IX || owner.lockType == LockType.SIX) {
+                        escalatedType = LockType.X;
+                    }
+                }
+            }
+            for (Request owner : tableLock.lockOwners) {
+                if (!owner.transaction.equals(transaction) && !matrixCompatible(owner.lockType, escalatedType)) {
+                    return false;
+                }
+            }
+            if ((tableLock.intentModes() & CONFLICTS[escalatedType.ordinal()]) != 0) {
+                //other transactions hold IS or IX through the intent counter
+                return false;
+            }
+
+            Request escalated = stripe.newRequest(transaction, escalatedType, table);
+            escalated.granted = true;
+            escalated.recyclable = true;
+            for (int i = tableLock.lockOwners.size() - 1; i >= 0; i--) {
+                Request owner = tableLock.lockOwners.get(i);
+                if (owner.transaction.equals(transaction)) {
+                    tableLock.removeOwner(owner);
+                    context.removeHeld(owner);
+                    stripe.freeRequest(owner);
+                }
+            }
+            tableLock.addOwner(escalated);
+            context.addHeld(escalated);
+            context.setEscalatedMode(table, escalatedType);
+            refreshWaitsFor(tableLock);
+        } finally {
+            if (tableLock != null) {
+                reopenFastPaths(tableLock);
+            }
+            stripe.latch.unlock();
+        }
+
+        for (Resource resource : bottomUp(context.lockedResources())) {
+            if (table.equals(tableAbove(resource))) {
+                //each re-acquire still needs its own release
+                int holds = context.numHolds(resource);
+                LockType mode = context.heldMode(resource);
+                releaseAllOn(transaction, context, resource);
+                context.cover(resource, mode, holds);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param escalatedType lock held on a table after escalation, or null
+     * @param lockType requested on a resource below it
+     * @return true if the table lock makes the lock on the resource unnecessary
+     */
+    private static boolean covers(LockType escalatedType, LockType lockType) {
+        return escalatedType == LockType.X
+                || (escalatedType == LockType.S && (lockType == LockType.S || lockType == LockType.IS));
+    }
+
+    /**
+     * @param resource at any depth of the hierarchy
+     * @return the closest ancestor of the resource that is a table, or null if
+     * there is none (e.g. for tables and databases)
+     */
+    private static Table tableAbove(Resource resource) {
+        for (Resource parent = resource.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent.getResourceType() == Resource.ResourceType.TABLE) {
+                return (Table) parent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param resources locked by a transaction
+     * @return the resources ordered deepest first, the order in which they can
+     * be released
+     */
+    private static List<Resource> bottomUp(Set<Resource> resources) {
+        List<Resource> ordered = new ArrayList<Resource>(resources);
+        ordered.sort(Comparator.comparingInt(Resource::getDepth).reversed());
+        return ordered;
+    }
+
+    /**
+     * Checks that the transaction holds an intent lock on the parent of a
+     * resource (the database of a table, the table of a page, the page of a
+     * row) that allows it to take a lock of
+     * the given type on the child: IS, IX or SIX for S and IS, and IX or SIX
+     * for the other types. The mode held on the parent is looked up in the
+     * transaction's lock context, so the parent's stripe is not latched and
+     * its owners are not scanned. Only the transaction itself can change its
+     * own locks, so the answer stays valid until the child is locked.
+     * @param transaction requesting the lock
+     * @param parent of the resource
+     * @param lockType requested on the resource
+     */
+    private void checkParentLock(Transaction transaction, Resource parent, LockType lockType) {
+        LockContext context = contexts.get(transaction);
+        LockType parentMode = context == null ? null : context.heldMode(parent);
+        if (!allowsChild(parentMode, lockType)) {
+            throw new IllegalArgumentException("Transaction doesn't hold appropriate parent lock");
+        }
+    }
+
+    /**
+     * @param parentMode held on the parent of a resource, or null
+     * @param lockType held or requested on the resource
+     * @return true if the parent lock allows the lock on the resource
+     */
+    private static boolean allowsChild(LockType parentMode, LockType lockType) {
+        if (lockType == LockType.S || lockType == LockType.IS) {
+            return parentMode == LockType.IS || parentMode == LockType.IX || parentMode == LockType.SIX;
+        }
+        return parentMode == LockType.IX || parentMode == LockType.SIX;
+    }
+
+    /**
+     * Checks whether the a transaction is compatible to get the desired lock on the given resource.
+     * This only looks at the modes currently granted. For an upgrade, the
+     * mode the transaction is upgrading from doesn't count against it unless
+     * another owner holds it too.
+     * @param resourceLock the lock of the resource we are looking it
+     * @param request the transaction and the type of lock it requests
+     * @return true if the transaction can get the lock, false if it has to wait
+     */
+    private boolean compatible(ResourceLock resourceLock, Request request) {
+        int grantedModes = resourceLock.grantedModes;
+        if (request.upgradeFrom != null) {
+            int ordinal = request.upgradeFrom.lockType.ordinal();
+            if (resourceLock.grantedCounts[ordinal] == 1) {
+                grantedModes &= ~(1 << ordinal);
+            }
+        }
+        //other transactions may still hold the same mode without the latch
+        grantedModes |= resourceLock.intentModes() | resourceLock.readerModes();
+        return (grantedModes & CONFLICTS[request.lockType.ordinal()]) == 0;
+    }
+
+    //my own helper
+    private boolean checkMatrixCompatibility(Request owner, Request requester) {
+        return (CONFLICTS[requester.lockType.ordinal()] & (1 << owner.lockType.ordinal())) == 0;
+    }
+
+    /**
+     * Whether holding one lock type already gives everything another one
+     * does, e.g. X implies S and SIX implies IX.
+     * @param heldType lock type held
+     * @param lockType lock type requested
+     * @return true if heldType is at least as strong as lockType
+     */
+    private static boolean implies(LockType heldType, LockType lockType) {
+        if (heldType == LockType.X) {
+            return true;
+        } else if (heldType == LockType.SIX) {
+            return lockType != LockType.X && lockType != LockType.U;
+        } else if (heldType == LockType.U) {
+            return lockType == LockType.U || lockType == LockType.S || lockType == LockType.IS;
+        } else if (heldType == LockType.S) {
+            return lockType == LockType.S || lockType == LockType.IS;
+        } else if (heldType == LockType.IX) {
+            return lockType == LockType.IX || lockType == LockType.IS;
+        } else {
+            return lockType == LockType.IS;
+        }
+    }
+
+    /**
+     * @return the weakest lock type implying both, e.g. SIX for S and IX
+     */
+    private static LockType supremum(LockType a, LockType b) {
+        for (LockType lockType : BY_STRENGTH) {
+            if (implies(lockType, a) && implies(lockType, b)) {
+                return lockType;
+            }
+        }
+        return LockType.X;
+    }
+
+    /**
+     * The compatibility matrix between lock types held by different
+     * transactions.
+     * @param ownedType lock type already granted
+     * @param requestedType lock type requested
+     * @return true if both can be granted at the same time
+     */
+    private static boolean matrixCompatible(LockType ownedType, LockType requestedType) {
+        if (ownedType == LockType.S) {
+            if (requestedType == LockType.IX || requestedType == LockType.X || requestedType == LockType.SIX) {
+                return false;
+            }
+        } else if (ownedType == LockType.X) {
+            return false;
+        } else if (ownedType == LockType.IS) {
+            if (requestedType == LockType.X) {
+                return false;
+            }
+        } else if (ownedType == LockType.IX) {
+            if (requestedType == LockType.S || requestedType == LockType.X || requestedType == LockType.SIX
+                    || requestedType == LockType.U) {
+                return false;
+            }
+        } else if (ownedType == LockType.U) {
+            if (!(requestedType == LockType.IS || requestedType == LockType.S)) {
+                return false;
+            }
+        } else {
+            if (requestedType != LockType.IS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Will release the lock and grant all mutually compatible transactions at
+     * the head of the FIFO queue. See spec for more details.
+     * @param transaction releasing lock
+     * @param resource of Resource being released
+     */
+    public void release(Transaction transaction, Resource resource) throws IllegalArgumentException{
+        Request granted = null;
+        if (transaction.getStatus() == Transaction.Status.Waiting) {
+            throw new IllegalArgumentException("Transaction is blocked");
+        }
+        sweepIntentCounters();
+
+        LockContext context = contexts.get(transaction);
+        if (context != null && context.leave(resource)) {
+            //the lock was re-acquired, it stays held until the last release
+            return;
+        }
+        if (context != null && context.numChildrenHeld(resource) > 0) {
+            throw new IllegalArgumentException("Transaction has not released bottom up");
+        }
+        Table table = tableAbove(resource);
+        if (table != null && context != null && context.escalatedMode(table) != null
+                && context.numHeld(resource) == 0) {
+            //dropped by the escalation, or never taken because the table
+            //lock covered it
+            if (!context.uncover(resource)) {
+                throw new IllegalArgumentException("Transaction does not hold a lock on resource");
+            }
+            return;
+        }
+        if (context != null && context.fastMode(resource) != null) {
+            releaseUnlatched(transaction, context, resource);
+            retire(transaction, context, true);
+            transaction.wake();
+            return;
+        }
+
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            ResourceLock resourceLock = stripe.locks.get(resource.getId());
+            if (resourceLock == null) {
+                throw new IllegalArgumentException("Resource has no locks on it");
+            }
+
+            Request toBeReleased = null;
+            for (int i = 0; i < resourceLock.lockOwners.size(); i++) {
+                Request owner = resourceLock.lockOwners.get(i);
+                if (owner.transaction == transaction) {
+                    toBeReleased = owner;
+                    break;
+                }
+            }
+
+            if (toBeReleased == null) {
+                throw new IllegalArgumentException("Transaction does not hold a lock on resource");
+            }
+
+            if (!(toBeReleased.lockType == LockType.S || toBeReleased.lockType == LockType.X ||
+                    toBeReleased.lockType == LockType.IS || toBeReleased.lockType == LockType.IX ||
+                    toBeReleased.lockType == LockType.SIX || toBeReleased.lockType == LockType.U)) {
+                throw new IllegalArgumentException("Transaction does not hold appropriate lock type");
+            }
+
+            resourceLock.removeOwner(toBeReleased);
+            if (context != null) {
+                context.removeHeld(toBeReleased);
+                retire(transaction, context, true);
+            }
+            stripe.freeRequest(toBeReleased);
+            transaction.wake();
+            if (resourceLock.hasRequesters()) {
+                granted = promote(resourceLock);
+                refreshWaitsFor(resourceLock);
+            }
+            reopenFastPaths(resourceLock);
+            stripe.reclaim(resource.getId(), resourceLock);
+        } finally {
+            stripe.latch.unlock();
+            signal(granted);
+        }
+        return;
+    }
+
+    /**
+     * Converts the transaction's lock on the resource to a weaker mode in
+     * place, e.g. X -> S once a write has been done and only needs to stay
+     * visible, or IX -> IS, and grants the waiters that the weaker mode lets
+     * through. The weaker mode must still allow the locks the transaction
+     * holds below the resource. An escalated table can't be downgraded: its
+     * lock stands for the locks that were dropped or never taken below it,
+     * writes included.
+     * @param transaction holding the lock
+     * @param resource the lock is on
+     * @param lockType to downgrade to, implied by the held one
+     */
+    public void downgrade(Transaction transaction, Resource resource, LockType lockType)
+            throws IllegalArgumentException {
+        if (transaction.getStatus() == Transaction.Status.Waiting) {
+            throw new IllegalArgumentException("Transaction is blocked");
+        }
+        LockContext context = contexts.get(transaction);
+        LockType heldType = context == null ? null : context.heldMode(resource);
+        if (heldType == null) {
+            Table table = tableAbove(resource);
+            if (table != null && context != null && context.escalatedMode(table) != null) {
+                throw new IllegalArgumentException("Lock was escalated, downgrade the table instead");
+            }
+            throw new IllegalArgumentException("Transaction does not hold a lock on resource");
+        }
+        if (heldType == lockType || !implies(heldType, lockType)) {
+            throw new IllegalArgumentException(String.format(
+                    "Transaction trying to downgrade %s -> %s", heldType, lockType));
+        }
+        if (resource.getResourceType() == Resource.ResourceType.TABLE
+                && context.escalatedMode((Table) resource) != null) {
+            throw new IllegalArgumentException("Escalated table lock can't be downgraded");
+        }
+        if (!context.childrenAllowedUnder(resource, lockType)) {
+            throw new IllegalArgumentException("Transaction holds locks below the resource that need "
+                    + heldType);
+        }
+
+        Request granted = null;
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            ResourceLock resourceLock = stripe.locks.get(resource.getId());
+            if (resourceLock == null) {
+                //only held through the intent counter or a reader slot
+                resourceLock = stripe.newLock();
+            }
+            if (hasIntentCounter(resource)) {
+                if (resourceLock.intents == null) {
+                    resourceLock.intents = intentCounterOf(resource);
+                }
+                adoptIntentHold(stripe, resourceLock, transaction, resource);
+            }
+            if (resourceLock.bias == null && !readerBiases.isEmpty()) {
+                resourceLock.bias = readerBiases.get(resource);
+            }
+            if (resourceLock.bias != null) {
+                adoptReaderHold(stripe, resourceLock, transaction, resource);
+            }
+
+            Request owner = null;
+            for (int i = 0; i < resourceLock.lockOwners.size(); i++) {
+                if (resourceLock.lockOwners.get(i).transaction == transaction) {
+                    owner = resourceLock.lockOwners.get(i);
+                    break;
+                }
+            }
+            //removed and added back so the granted modes are recounted
+            resourceLock.removeOwner(owner);
+            owner.lockType = lockType;
+            resourceLock.addOwner(owner);
+            context.convertHeld(owner);
+            if (resourceLock.hasRequesters()) {
+                granted = promote(resourceLock);
+                refreshWaitsFor(resourceLock);
+            }
+            reopenFastPaths(resourceLock);
+        } finally {
+            stripe.latch.unlock();
+            signal(granted);
+        }
+    }
+
+    /**
+     * Releases every lock the transaction holds, bottom up, e.g.
+     * when it commits or aborts. Each resource is latched once, and its
+     * waiters are promoted once. Unlike release, the transaction's status is
+     * left as it is.
+     * @param transaction releasing its locks
+     */
+    public void releaseAll(Transaction transaction) throws IllegalArgumentException {
+        if (transaction.getStatus() == Transaction.Status.Waiting) {
+            throw new IllegalArgumentException("Transaction is blocked");
+        }
+        sweepIntentCounters();
+        LockContext context = contexts.get(transaction);
+        if (context == null) {
+            return;
+        }
+
+        for (Resource resource : bottomUp(context.lockedResources())) {
+            releaseAllOn(transaction, context, resource);
+        }
+        retire(transaction, context, false);
+    }
+
+    /**
+     * Removes all of a transaction's locks on one resource and promotes the
+     * waiters behind them.
+     * @param transaction releasing its locks
+     * @param context of the transaction
+     * @param resource being released
+     */
+    private void releaseAllOn(Transaction transaction, LockContext context, Resource resource) {
+        if (context.fastMode(resource) != null) {
+            releaseUnlatched(transaction, context, resource);
+            return;
+        }
+        Request granted = null;
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try {
+            ResourceLock resourceLock = stripe.locks.get(resource.getId());
+            for (int i = resourceLock.lockOwners.size() - 1; i >= 0; i--) {
+                Request owner = resourceLock.lockOwners.get(i);
+                if (owner.transaction == transaction) {
+                    resourceLock.removeOwner(owner);
+                    context.removeHeld(owner);
+                    stripe.freeRequest(owner);
+                }
+            }
+            granted = promote(resourceLock);
+            refreshWaitsFor(resourceLock);
+            reopenFastPaths(resourceLock);
+            stripe.reclaim(resource.getId(), resourceLock);
+        } finally {
+            stripe.latch.unlock();
+            signal(granted);
+        }
+    }
+
+    /**
+     * This method will grant mutually compatible lock requests for the resource
+     * from the FIFO queue. Must be called with the resource's stripe latched.
+     * The queue is walked once: each requester is checked against the
+     * granted-mode summary, which already includes the requesters granted
+     * before it, and the granted prefix is then cut off the queue in one go.
+     * The granted requests are chained together in queue order and have to
+     * be passed to signal once the latch is released.
+     * @param resourceLock of locked Resource
+     * @return the first granted request, or null if none was granted
+     */
+    private Request promote(ResourceLock resourceLock) {
+        Request first = resourceLock.firstRequester;
+        Request last = null;
+        Request requester = first;
+        while (requester != null && compatible(resourceLock, requester)) {
+            grant(resourceLock, requester);
+            if (last != null) {
+                last.nextGranted = requester;
+            }
+            last = requester;
+            requester = requester.nextRequester;
+            last.prevRequester = null;
+            last.nextRequester = null;
+        }
+        if (last == null) {
+            return null;
+        }
+        resourceLock.firstRequester = requester;
+        if (requester == null) {
+            resourceLock.lastRequester = null;
+        } else {
+            requester.prevRequester = null;
+        }
+        return first;
+    }
+
+    /**
+     * Notifies the waiters of requests granted by promote: parked threads are
+     * unparked and futures are completed. Called without any latch held, since
+     * completing a future runs the caller's continuations.
+     * @param granted first request of the chain returned by promote
+     */
+    private void signal(Request granted) {
+        while (granted != null) {
+            Request next = granted.nextGranted;
+            granted.nextGranted = null;
+            if (granted.waiter != null) {
+                LockSupport.unpark(granted.waiter);
+            }
+            if (granted.future != null) {
+                granted.future.complete(null);
+            }
+            granted = next;
+        }
+    }
+
+    /**
+     * Moves a queued request to the lock owners and marks its transaction as
+     * running again.
+     * An upgrade replaces the lock the transaction already owns.
+     * @param resourceLock of locked Resource
+     * @param request that is being granted
+     */
+    private void grant(ResourceLock resourceLock, Request request) {
+        Request upgradeFrom = request.upgradeFrom;
+        if (upgradeFrom != null) {
+            resourceLock.removeOwner(upgradeFrom);
+            request.upgradeFrom = null;
+        }
+        resourceLock.addOwner(request);
+        stopWaiting(request);
+        if (upgradeFrom == null) {
+            contextOf(request.transaction).addHeld(request);
+        } else {
+            contextOf(request.transaction).convertHeld(request);
+        }
+        request.transaction.wake();
+        request.granted = true;
+    }
+
+    /**
+     * Will return true if the specified transaction holds a lock of type
+     * lockType on the resource. A resource below an escalated table counts
+     * as held in the mode it was acquired in until it is released, although
+     * its own lock was dropped or never taken.
+     * @param transaction potentially holding lock
+     * @param resource on which we are checking if the transaction has a lock
+     * @param lockType of lock
+     * @return true if the transaction holds lock
+     */
+    public boolean holds(Transaction transaction, Resource resource, LockType lockType) {
+        LockContext context = contexts.get(transaction);
+        return context != null && context.reportedMode(resource) == lockType;
+    }
+
+    /**
+     * One partition of the lock table: the resource locks whose resources
+     * hash to this stripe, keyed by catalog id, and the latch that guards
+     * them. A resource lock that has neither owners nor requesters is removed
+     * from the table and kept on a small free list for the next resource that
+     * gets locked, and so are the requests that were granted right away once
+     * they are released. Every access to a resource lock looks it up again under the
+     * latch, and requests never point at their resource lock, so nothing can
+     * still be using a resource lock once it has been removed.
+     */
+    private class Stripe {
+        private ReentrantLock latch;
+        private LongMap<ResourceLock> locks;
+        private ResourceLock freeLocks;
+        private int numFreeLocks;
+        private Request freeRequests;
+        private int numFreeRequests;
+
+        public Stripe() {
+            this.latch = new ReentrantLock();
+            this.locks = new LongMap<ResourceLock>();
+        }
+
+        /**
+         * @return an empty resource lock, from the free list if there is one
+         */
+        public ResourceLock newLock() {
+            ResourceLock resourceLock = freeLocks;
+            if (resourceLock == null) {
+                return new ResourceLock();
+            }
+            freeLocks = resourceLock.nextFree;
+            resourceLock.nextFree = null;
+            numFreeLocks--;
+            return resourceLock;
+        }
 
-    public LockManager() {
-        this.resourceToLock = new HashMap<Resource, ResourceLock>();
+        /**
+         * @return a request for the resource, from the free list if there is one
+         */
+        public Request newRequest(Transaction transaction, LockType lockType, Resource resource) {
+            Request request = freeRequests;
+            if (request == null) {
+                request = new Request(transaction, lockType);
+            } else {
+                freeRequests = request.nextFree;
+                request.nextFree = null;
+                numFreeRequests--;
+                request.transaction = transaction;
+                request.lockType = lockType;
+            }
+            request.resource = resource;
+            return request;
+        }
 
+        /**
+         * Puts a request that is no longer owned back on the free list, if it
+         * was granted right away and so was never seen outside the latch.
+         * @param request that was just removed from the owners of a resource
+         * of this stripe
+         */
+        public void freeRequest(Request request) {
+            if (!request.recyclable || numFreeRequests >= MAX_FREE_REQUESTS) {
+                return;
+            }
+            request.transaction = null;
+            request.resource = null;
+            request.upgradeFrom = null;
+            request.granted = false;
+            request.recyclable = false;
+            request.nextFree = freeRequests;
+            freeRequests = request;
+            numFreeRequests++;
+        }
+
+        /**
+         * Removes the resource lock from the table if nobody owns or waits for
+         * it anymore.
+         * @param id of the locked resource
+         * @param resourceLock of the resource
+         */
+        public void reclaim(long id, ResourceLock resourceLock) {
+            if (!resourceLock.lockOwners.isEmpty() || resourceLock.hasRequesters()) {
+                return;
+            }
+            locks.remove(id);
+            if (resourceLock.bias != null) {
+                forgetReaderBias(resourceLock.bias);
+            }
+            resourceLock.intents = null;
+            resourceLock.bias = null;
+            if (numFreeLocks < MAX_FREE_LOCKS) {
+                resourceLock.nextFree = freeLocks;
+                freeLocks = resourceLock;
+                numFreeLocks++;
+            }
+        }
     }
 
     /**
-     * The acquire method will grant the lock if it is compatible. If the lock
-     * is not compatible, then the request will be placed on the requesters
-     * queue.
-     * @param transaction that is requesting the lock
-     * @param resource that the transaction wants
-     * @param lockType of requested lock
+     * What the Lock Manager keeps track of for a single transaction: the
+     * resources it holds locks on and in which mode, how many locks it holds
+     * on the children of each resource, the tables its page locks were
+     * escalated to, and the request it is waiting on, if any. Only the transaction's own calls
+     * change it while it is running, and only the holder of the latch of the
+     * resource it waits on while it is waiting. The per resource records are
+     * reused, so locking and unlocking a resource doesn't allocate.
      */
-    public void acquire(Transaction transaction, Resource resource, LockType lockType)
-            throws IllegalArgumentException {
+    private class LockContext {
+        private volatile int numLocks;
+        private volatile Request waitingFor;
+        private static final int IN_USE = 0;
+        private static final int IDLE = 1;
+        private static final int EVICTED = 2;
 
-        ResourceLock resourceLock = null;
-        if (!resourceToLock.keySet().contains(resource)) {
-            resourceLock = new ResourceLock();
-        } else {
-            resourceLock = resourceToLock.get(resource);
+        private final Transaction transaction;
+        //IDLE while kept without locks, claimed back or evicted by CAS
+        private final AtomicInteger state;
+        //the idle contexts of the thread that last kept it, only a hint
+        //since the state decides who gets it
+        private LockContext[] keptIn;
+        private LongMap<Holding> holdings;
+        private Holding freeHoldings;
+        private int numFreeHoldings;
+
+        public LockContext(Transaction transaction) {
+            this.transaction = transaction;
+            this.state = new AtomicInteger();
+            this.holdings = new LongMap<Holding>();
         }
 
-        Request request = new Request(transaction, lockType);
-        Request lockBeforeUpgrade = null;
+        public synchronized void addHeld(Request owner) {
+            addHeld(owner.resource, owner.lockType);
+        }
 
-        //all the illegal argument exceptions
-        if (transaction.getStatus() == Transaction.Status.Waiting) {
-            throw new IllegalArgumentException("Transaction is blocked");
+        /**
+         * The transaction's lock on the resource was upgraded or downgraded
+         * to the mode of the given owner.
+         */
+        public synchronized void convertHeld(Request owner) {
+            holdings.get(owner.resource.getId()).mode = owner.lockType;
         }
 
-        if (!resourceLock.lockOwners.isEmpty()) {
-            for (Request owner : resourceLock.lockOwners) {
-                if (owner.transaction.equals(transaction)) {
-                    if (owner.lockType.equals(lockType)) {
-                        throw new IllegalArgumentException("Transaction already holds this type of lock");
-                    }
-                    if (owner.lockType == LockType.X && lockType == LockType.S) {
-                        throw new IllegalArgumentException("Transaction trying to downgrade X -> S");
-                    }
-                    if (owner.lockType == LockType.IX && lockType == LockType.IS) {
-                        throw new IllegalArgumentException("Transaction trying to downgrade IX -> IS");
-                    }
-                    if (owner.lockType == LockType.S && lockType == LockType.X) {
-                        //going to upgrade this later
-                        lockBeforeUpgrade = owner;
-                    }
-                }
+        public synchronized void removeHeld(Request owner) {
+            removeHeld(owner.resource);
+        }
+
+        /**
+         * Records an intent lock about to be counted in the resource's intent
+         * counter. It only shows up in fastMode once it is confirmed.
+         */
+        public synchronized void addIntentHeld(Resource resource, LockType lockType) {
+            addHeld(resource, lockType);
+            holdings.get(resource.getId()).intentMode = lockType;
+        }
+
+        public synchronized void confirmIntentHeld(Resource resource) {
+            holdings.get(resource.getId()).intentConfirmed = true;
+        }
+
+        public synchronized void removeIntentHeld(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            holding.intentMode = null;
+            holding.intentConfirmed = false;
+            removeHeld(resource);
+        }
+
+        /**
+         * The intent lock became a regular owner; the resource stays held.
+         */
+        public synchronized void adoptIntentHeld(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            holding.intentMode = null;
+            holding.intentConfirmed = false;
+        }
+
+        public synchronized void addReaderHeld(Resource resource, ReaderBias bias, int slot) {
+            addHeld(resource, LockType.S);
+            Holding holding = holdings.get(resource.getId());
+            holding.readerBias = bias;
+            holding.readerSlot = slot;
+        }
+
+        /**
+         * @return the reader slot the transaction held on the resource
+         */
+        public synchronized int removeReaderHeld(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            int slot = holding.readerSlot;
+            holding.readerBias = null;
+            removeHeld(resource);
+            return slot;
+        }
+
+        /**
+         * The S lock held through a reader slot became a regular owner; the
+         * resource stays held.
+         * @return the reader slot the transaction held, or -1 if it held none
+         */
+        public synchronized int adoptReaderHeld(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null || holding.readerBias == null) {
+                return -1;
+            }
+            holding.readerBias = null;
+            return holding.readerSlot;
+        }
+
+        /**
+         * @return the reader bias whose slot the transaction holds the
+         * resource through, or null
+         */
+        public synchronized ReaderBias readerBias(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            return holding == null ? null : holding.readerBias;
+        }
+
+        /**
+         * @return the mode the transaction holds on the resource without its
+         * stripe latched, i.e. through its intent counter or a reader slot,
+         * or null
+         */
+        public synchronized LockType fastMode(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null) {
+                return null;
+            }
+            if (holding.readerBias != null) {
+                return LockType.S;
             }
+            return holding.intentConfirmed ? holding.intentMode : null;
         }
 
-        if (resource.getResourceType() == Resource.ResourceType.PAGE) {
-            if (lockType == LockType.IS || lockType == LockType.IX) {
-                throw new IllegalArgumentException("Transaction requesting intent lock on page");
+        /**
+         * @return the mode the transaction holds on the resource, however it
+         * was granted, or null if it holds none
+         */
+        public synchronized LockType heldMode(Resource resource) {
+            return modeOf(holdings.get(resource.getId()));
+        }
+
+        /**
+         * Counts one more hold of the lock on the resource if the mode held
+         * implies the requested one.
+         * @return true if the lock was re-acquired
+         */
+        public synchronized boolean reenter(Resource resource, LockType lockType) {
+            Holding holding = holdings.get(resource.getId());
+            LockType mode = modeOf(holding);
+            if (mode == null || !implies(mode, lockType)) {
+                return false;
             }
-            Page page = (Page) resource;
-            Table parent = page.getTable();
-            ResourceLock locksOnParent = resourceToLock.get(parent);
-            if (locksOnParent == null) {
-                throw new IllegalArgumentException("Transaction doesn't hold appropriate parent lock");
+            holding.reentries++;
+            return true;
+        }
+
+        /**
+         * Drops one hold of the lock on the resource if it was re-acquired.
+         * @return true if the lock stays held
+         */
+        public synchronized boolean leave(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null || holding.reentries == 0) {
+                return false;
             }
-            Boolean holdsParentLock = false;
-            for (Request ownerOfParent : locksOnParent.lockOwners) {
-                if (ownerOfParent.transaction.equals(transaction)) {
-                    holdsParentLock = true;
-                    if (lockType == LockType.S) {
-                        if (!(ownerOfParent.lockType == LockType.IS || ownerOfParent.lockType == LockType.IX)) {
-                            throw new IllegalArgumentException("Transaction doesn't hold appropriate parent lock");
-                        }
-                    }
-                    if (lockType == LockType.X) {
-                        if (ownerOfParent.lockType != LockType.IX) {
-                            throw new IllegalArgumentException("Transaction doesn't hold appropriate parent lock");
-                        }
-                    }
+            holding.reentries--;
+            return true;
+        }
+
+        /**
+         * @return true if every lock the transaction holds on a child of the
+         * resource would still be allowed with the given mode on it
+         */
+        public synchronized boolean childrenAllowedUnder(Resource resource, LockType lockType) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null || holding.childrenHeld == 0) {
+                return true;
+            }
+            for (Holding child : holdings.values()) {
+                LockType childMode = modeOf(child);
+                if (childMode != null && resource.equals(child.resource.getParent())
+                        && !allowsChild(lockType, childMode)) {
+                    return false;
                 }
             }
-            if (holdsParentLock == false) {
-                throw new IllegalArgumentException("Transaction doesn't hold appropriate parent lock");
+            return true;
+        }
+
+        public synchronized int numHeld(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            return holding == null ? 0 : holding.held;
+        }
+
+        private LockType modeOf(Holding holding) {
+            if (holding == null || (holding.intentMode != null && !holding.intentConfirmed)) {
+                return null;
             }
+            return holding.mode;
         }
 
-        if (compatible(resource, transaction, lockType)) {
-            resourceLock.lockOwners.add(request);
-            if (lockBeforeUpgrade != null) {
-                resourceLock.lockOwners.remove(lockBeforeUpgrade);
+        private void addHeld(Resource resource, LockType mode) {
+            numLocks++;
+            totalLocks.increment();
+            Holding holding = holding(resource);
+            holding.held++;
+            holding.mode = mode;
+            Resource parent = resource.getParent();
+            if (parent != null) {
+                holding(parent).childrenHeld++;
             }
-            resourceToLock.put(resource, resourceLock);
+        }
 
-        } else {
-            if (lockBeforeUpgrade != null) {
-                resourceLock.requestersQueue.add(0, request);
-            } else {
-                resourceLock.requestersQueue.add(request);
+        private void removeHeld(Resource resource) {
+            numLocks--;
+            totalLocks.decrement();
+            Holding holding = holdings.get(resource.getId());
+            if (--holding.held == 0) {
+                holding.mode = null;
+                holding.reentries = 0;
+                if (holding.escalated != null) {
+                    holding.escalated = null;
+                    forgetCovered(resource);
+                }
+            }
+            forgetIfUnused(holding);
+            Resource parent = resource.getParent();
+            if (parent != null) {
+                Holding parentHolding = holdings.get(parent.getId());
+                parentHolding.childrenHeld--;
+                forgetIfUnused(parentHolding);
             }
-            resourceToLock.put(resource, resourceLock);
-            transaction.sleep();
         }
 
-        return;
-    }
+        public synchronized LockType escalatedMode(Table table) {
+            Holding holding = holdings.get(table.getId());
+            return holding == null ? null : holding.escalated;
+        }
 
-    /**
-     * Checks whether the a transaction is compatible to get the desired lock on the given resource
-     * @param resource the resource we are looking it
-     * @param transaction the transaction requesting a lock
-     * @param lockType the type of lock the transaction is request
-     * @return true if the transaction can get the lock, false if it has to wait
-     */
-    private boolean compatible(Resource resource, Transaction transaction, LockType lockType) {
+        public synchronized void setEscalatedMode(Table table, LockType lockType) {
+            holding(table).escalated = lockType;
+        }
 
-        if (!resourceToLock.keySet().contains(resource)) {
-            return true;
+        /**
+         * @return how many releases the transaction's lock on the resource
+         * takes, 1 plus its re-acquires, or 0 if it holds none
+         */
+        public synchronized int numHolds(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            return holding == null || holding.held == 0 ? 0 : 1 + holding.reentries;
         }
 
-        ResourceLock resourceLock = resourceToLock.get(resource);
-        Request request = new Request(transaction, lockType);
+        /**
+         * Remembers that the resource is below the transaction's escalated
+         * table and counts as locked in the given mode that many times,
+         * although it holds no lock on it.
+         */
+        public synchronized void cover(Resource resource, LockType mode, int holds) {
+            Holding holding = holding(resource);
+            holding.covered += holds;
+            holding.coveredMode = mode;
+        }
 
-        for (Request owner : resourceLock.lockOwners) {
-            if (!checkMatrixCompatibility(owner, request)) {
-                return false;
+        /**
+         * Counts an acquire of a resource the escalated table lock covers.
+         * Without reentrant locks, it is only counted once.
+         */
+        public synchronized void acquireCovered(Resource resource, LockType lockType, boolean reentrant) {
+            Holding holding = holding(resource);
+            if (reentrant || holding.covered == 0) {
+                holding.covered++;
             }
+            holding.coveredMode = holding.coveredMode == null ? lockType : supremum(holding.coveredMode, lockType);
         }
 
-        return true;
-    }
+        /**
+         * @return the mode the transaction holds on the resource, or the mode
+         * it acquired it in if the resource is covered by an escalated table,
+         * or null
+         */
+        public synchronized LockType reportedMode(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            LockType mode = modeOf(holding);
+            return mode == null && holding != null && holding.covered > 0 ? holding.coveredMode : mode;
+        }
 
-    //my own helper
-    private boolean checkMatrixCompatibility(Request owner, Request requester) {
-        LockType ownedType = owner.lockType;
-        LockType requestedType = requester.lockType;
-        if (ownedType == LockType.S) {
-            if (requestedType == LockType.IX) {
+        /**
+         * @return the resources the transaction holds a lock on, and those
+         * covered by its escalated tables
+         */
+        public synchronized Set<Resource> reportedResources() {
+            Set<Resource> resources = new HashSet<Resource>();
+            for (Holding holding : holdings.values()) {
+                if (holding.held > 0 || holding.covered > 0) {
+                    resources.add(holding.resource);
+                }
+            }
+            return resources;
+        }
+
+        /**
+         * Releases a resource covered by an escalated table once.
+         * @return false if the resource wasn't covered
+         */
+        public synchronized boolean uncover(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null || holding.covered == 0) {
                 return false;
             }
-            if (requestedType == LockType.X) {
-                //upgrade case
-                if (owner.transaction.equals(requester.transaction)) {
-                    return true;
+            if (--holding.covered == 0) {
+                holding.coveredMode = null;
+            }
+            forgetIfUnused(holding);
+            return true;
+        }
+
+        /**
+         * @return true if escalating the locks below the table failed and
+         * the transaction hasn't taken twice as many of them since
+         */
+        public synchronized boolean escalationDeferred(Table table) {
+            Holding holding = holdings.get(table.getId());
+            return holding != null && holding.childrenHeld < holding.escalateAgainAt;
+        }
+
+        public synchronized void deferEscalation(Table table) {
+            Holding holding = holding(table);
+            holding.escalateAgainAt = 2 * holding.childrenHeld;
+        }
+
+        public synchronized int numChildrenHeld(Resource parent) {
+            Holding holding = holdings.get(parent.getId());
+            return holding == null ? 0 : holding.childrenHeld;
+        }
+
+        public synchronized Set<Resource> lockedResources() {
+            Set<Resource> resources = new HashSet<Resource>();
+            for (Holding holding : holdings.values()) {
+                if (holding.held > 0) {
+                    resources.add(holding.resource);
+                }
+            }
+            return resources;
+        }
+
+        private Holding holding(Resource resource) {
+            Holding holding = holdings.get(resource.getId());
+            if (holding == null) {
+                holding = freeHoldings;
+                if (holding == null) {
+                    holding = new Holding();
                 } else {
-                    return false;
+                    freeHoldings = holding.nextFree;
+                    holding.nextFree = null;
+                    numFreeHoldings--;
                 }
+                holding.resource = resource;
+                holdings.put(resource.getId(), holding);
             }
-        } else if (ownedType == LockType.X) {
-            return false;
-        } else if (ownedType == LockType.IS) {
-            if (requestedType == LockType.X) {
-                return false;
+            return holding;
+        }
+
+        /**
+         * Forgets the resources covered by a table that is no longer
+         * escalated.
+         */
+        private void forgetCovered(Resource table) {
+            for (Holding holding : holdings.values()) {
+                if (holding.covered > 0 && table.equals(tableAbove(holding.resource))) {
+                    holding.covered = 0;
+                    holding.coveredMode = null;
+                    forgetIfUnused(holding);
+                }
             }
-        } else {
-            if (requestedType == LockType.S || requestedType == LockType.X) {
-                return false;
+        }
+
+        private void forgetIfUnused(Holding holding) {
+            if (holding.held > 0 || holding.childrenHeld > 0 || holding.covered > 0) {
+                return;
+            }
+            holdings.remove(holding.resource.getId());
+            if (numFreeHoldings < MAX_FREE_HOLDINGS) {
+                holding.resource = null;
+                holding.intentMode = null;
+                holding.intentConfirmed = false;
+                holding.readerBias = null;
+                holding.escalateAgainAt = 0;
+                holding.nextFree = freeHoldings;
+                freeHoldings = holding;
+                numFreeHoldings++;
             }
         }
-        return true;
     }
 
     /**
-     * Will release the lock and grant all mutually compatible transactions at
-     * the head of the FIFO queue. See spec for more details.
-     * @param transaction releasing lock
-     * @param resource of Resource being released
+     * A transaction's locks on one resource and on its children.
      */
-    public void release(Transaction transaction, Resource resource) throws IllegalArgumentException{
-        if (transaction.getStatus() == Transaction.Status.Waiting) {
-            throw new IllegalArgumentException("Transaction is blocked");
-        }
+    private class Holding {
+        private Resource resource;
+        private int held;
+        private LockType mode;
+        private int reentries;
+        private int childrenHeld;
+        private LockType escalated;
+        private int covered;
+        private LockType coveredMode;
+        private int escalateAgainAt;
+        private LockType intentMode;
+        private boolean intentConfirmed;
+        private ReaderBias readerBias;
+        private int readerSlot;
+        private Holding nextFree;
+    }
 
-        ResourceLock resourceLock = null;
-        if (!resourceToLock.keySet().contains(resource)) {
-            throw new IllegalArgumentException("Resource has no locks on it");
-        } else {
-            resourceLock = resourceToLock.get(resource);
+    /**
+     * The visible readers of a reader biased resource: while the bias is on,
+     * an S lock is granted by publishing the transaction in a free slot near
+     * the one its thread hashes to, so readers on different cores write to
+     * different cache lines and never to the shared resource lock. A request
+     * for any other mode revokes the bias under the latch and then treats
+     * the transactions in the slots as holders of S; a reader that finds the
+     * bias revoked right after publishing itself backs out. The bias is only
+     * restored once the resource has been left to readers for
+     * INHIBIT_FACTOR times as long as the last revocation kept it off, so
+     * that writes that come often don't pay for revocations over and over.
+     * Everything but the slots and the biased flag is guarded by the
+     * resource's stripe latch.
+     */
+    private class ReaderBias {
+        private static final int BACKED_OUT = -2;
+        //slots taken by one reader are a cache line apart from the next one's
+        private static final int STRIDE = 16;
+        private static final int PROBES = 4;
+        private static final int INHIBIT_FACTOR = 9;
+
+        private final Resource resource;
+        private final AtomicReferenceArray<Transaction> slots;
+        private final int slotMask;
+        private volatile boolean biased;
+        private boolean enabled;
+        private boolean revoking;
+        private boolean inhibited;
+        private long revokedAt;
+        private long inhibitUntil;
+
+        public ReaderBias(Resource resource) {
+            this.resource = resource;
+            int numSlots = 8;
+            while (numSlots < 2 * Runtime.getRuntime().availableProcessors()) {
+                numSlots <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<Transaction>(numSlots * STRIDE);
+            this.slotMask = numSlots - 1;
         }
 
-        Request toBeReleased = null;
-        for (Request owner : resourceLock.lockOwners) {
-            if (owner.transaction == transaction) {
-                toBeReleased = owner;
-                break;
+        /**
+         * @return the slot the transaction was published in, -1 if the bias
+         * is off or no slot is free, or BACKED_OUT if the bias was revoked
+         * while the transaction was being published
+         */
+        public int tryAcquire(Transaction transaction) {
+            long threadId = Thread.currentThread().getId();
+            int start = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32);
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (start + i) & slotMask;
+                if (slots.get(slot * STRIDE) == null && slots.compareAndSet(slot * STRIDE, null, transaction)) {
+                    if (biased) {
+                        return slot;
+                    }
+                    slots.set(slot * STRIDE, null);
+                    return BACKED_OUT;
+                }
             }
+            return -1;
         }
 
-        if (toBeReleased == null) {
-            throw new IllegalArgumentException("Transaction does not hold a lock on resource");
+        /**
+         * @return true if the bias was off when the slot was freed, i.e. a
+         * writer may be waiting for it
+         */
+        public boolean release(int slot) {
+            slots.set(slot * STRIDE, null);
+            return !biased;
         }
 
-        if (!(toBeReleased.lockType == LockType.S || toBeReleased.lockType == LockType.X ||
-                toBeReleased.lockType == LockType.IS || toBeReleased.lockType == LockType.IX)) {
-            throw new IllegalArgumentException("Transaction does not hold appropriate lock type");
+        public boolean hasReaders() {
+            for (int slot = 0; slot <= slotMask; slot++) {
+                if (slots.get(slot * STRIDE) != null) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        if (resource.getResourceType() == Resource.ResourceType.TABLE) {
-            Table table = (Table) resource;
-            for (Page child : table.getPages()) {
-                ResourceLock locksOnChild = resourceToLock.get(child);
-                for (Request ownerOfChild : locksOnChild.lockOwners) {
-                    if (ownerOfChild.transaction.equals(transaction)) {
-                        throw new IllegalArgumentException("Transaction has not released bottom up");
-                    }
+        /**
+         * Adds the transactions in the slots other than the given one.
+         */
+        public void addReaders(Transaction transaction, List<Transaction> readers) {
+            for (int slot = 0; slot <= slotMask; slot++) {
+                Transaction reader = slots.get(slot * STRIDE);
+                if (reader != null && !reader.equals(transaction)) {
+                    readers.add(reader);
                 }
             }
         }
 
-        resourceLock.lockOwners.remove(toBeReleased);
-        transaction.wake();
-        promote(resource);
-        return;
+        public void revoke() {
+            if (biased) {
+                biased = false;
+                revoking = true;
+                revokedAt = System.nanoTime();
+            }
+        }
+
+        public void rebias() {
+            if (biased || !enabled) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (revoking) {
+                revoking = false;
+                inhibited = true;
+                inhibitUntil = now + INHIBIT_FACTOR * (now - revokedAt);
+            }
+            if (inhibited && now - inhibitUntil < 0) {
+                return;
+            }
+            inhibited = false;
+            biased = true;
+        }
     }
 
     /**
-     * This method will grant mutually compatible lock requests for the resource
-     * from the FIFO queue.
-     * @param resource of locked Resource
-     */
-     private void promote(Resource resource) {
-         ResourceLock resourceLock = resourceToLock.get(resource);
-         int numToPop = 0;
-         for (Request requester : resourceLock.requestersQueue) {
-             Transaction transaction = requester.transaction;
-             LockType lockType = requester.lockType;
-             if (compatible(resource, transaction, lockType)) {
-                 transaction.wake();
-                 acquire(transaction, resource, lockType);
-                 numToPop++;
-             } else {
-                 break;
-             }
-         }
-         for (int i = 0; i < numToPop; i++) {
-             resourceLock.requestersQueue.removeFirst();
-         }
-         return;
-     }
+     * Counts the IS and IX locks on a table or database that were granted
+     * without latching its stripe, packed into one word that is updated with
+     * compare-and-set. While the slow flag is set, i.e. while someone holds or
+     * waits for a mode that conflicts with IS or IX, no new locks are counted
+     * and IS and IX requests take the latched path like any other request.
+     * The holders themselves are recorded in their transactions' contexts.
+     */
+    private class IntentCounter {
+        private static final int COUNT_BITS = 30;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        private static final long SLOW = 1L << 62;
+        private static final long RETIRED = 1L << 61;
+
+        private final Resource resource;
+        private final AtomicLong word;
+        //the transactions counted while the slow flag is set, or null until
+        //they are looked for; guarded by the resource's stripe latch
+        private HashMap<Transaction, LockType> holders;
+
+        public IntentCounter(Resource resource) {
+            this.resource = resource;
+            this.word = new AtomicLong();
+        }
+
+        private long unit(LockType lockType) {
+            return lockType == LockType.IS ? 1L : 1L << COUNT_BITS;
+        }
+
+        /**
+         * @return true if the lock was counted, false if the slow flag is set
+         * or the counter was retired
+         */
+        public boolean tryAcquire(LockType lockType) {
+            long unit = unit(lockType);
+            while (true) {
+                long current = word.get();
+                if ((current & (SLOW | RETIRED)) != 0 || ((current / unit) & COUNT_MASK) == COUNT_MASK) {
+                    return false;
+                }
+                if (word.compareAndSet(current, current + unit)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the slow flag was set when the lock was uncounted
+         */
+        public boolean release(LockType lockType) {
+            return (word.getAndAdd(-unit(lockType)) & SLOW) != 0;
+        }
+
+        public boolean isSlow() {
+            return (word.get() & SLOW) != 0;
+        }
+
+        /**
+         * @return true if nothing is counted and the slow flag is clear
+         */
+        public boolean isIdle() {
+            return word.get() == 0;
+        }
+
+        /**
+         * Stops counting for good if the counter is idle.
+         * @return true if the counter was retired
+         */
+        public boolean retire() {
+            return word.compareAndSet(0, RETIRED);
+        }
+
+        public boolean isRetired() {
+            return (word.get() & RETIRED) != 0;
+        }
+
+        public void setSlow() {
+            long current = word.get();
+            while ((current & SLOW) == 0 && !word.compareAndSet(current, current | SLOW)) {
+                current = word.get();
+            }
+        }
+
+        public void clearSlow() {
+            holders = null;
+            long current = word.get();
+            while ((current & SLOW) != 0 && !word.compareAndSet(current, current & ~SLOW)) {
+                current = word.get();
+            }
+        }
+
+        /**
+         * @return bit mask of the modes with at least one counted holder
+         */
+        public int modes() {
+            long current = word.get();
+            int modes = 0;
+            if ((current & COUNT_MASK) != 0) {
+                modes |= 1 << LockType.IS.ordinal();
+            }
+            if (((current >>> COUNT_BITS) & COUNT_MASK) != 0) {
+                modes |= 1 << LockType.IX.ordinal();
+            }
+            return modes;
+        }
+    }
 
     /**
-     * Will return true if the specified transaction holds a lock of type
-     * lockType on the resource.
-     * @param transaction potentially holding lock
-     * @param resource on which we are checking if the transaction has a lock
-     * @param lockType of lock
-     * @return true if the transaction holds lock
+     * Waits-for graph of the transactions that are waiting on a lock. A
+     * transaction waits on at most one request, so its outgoing edges are
+     * replaced as a whole whenever the resource it waits on changes. The
+     * number of edges into each transaction is kept as well, so that the
+     * search for a cycle through a transaction nobody waits for is skipped.
      */
-    public boolean holds(Transaction transaction, Resource resource, LockType lockType) {
-        ResourceLock resourceLock = resourceToLock.get(resource);
-        Request request = new Request(transaction, lockType);
+    private class WaitsForGraph {
+        private HashMap<Transaction, List<Transaction>> edges;
+        private HashMap<Transaction, Integer> incoming;
 
-        for (Request owner : resourceLock.lockOwners) {
-            if (owner.equals(request)) {
-                return true;
+        public WaitsForGraph() {
+            this.edges = new HashMap<Transaction, List<Transaction>>();
+            this.incoming = new HashMap<Transaction, Integer>();
+        }
+
+        public synchronized void setEdges(Transaction waiter, List<Transaction> blockers) {
+            unlink(edges.put(waiter, blockers));
+            for (int i = 0; i < blockers.size(); i++) {
+                incoming.merge(blockers.get(i), 1, Integer::sum);
             }
         }
-        return false;
+
+        public synchronized void remove(Transaction waiter) {
+            unlink(edges.remove(waiter));
+        }
+
+        /**
+         * Drops the waiter's edges to a blocker that no longer holds the lock
+         * it waits on, leaving the rest of its edges as they are.
+         */
+        public synchronized void removeEdge(Transaction waiter, Transaction blocker) {
+            List<Transaction> blockers = edges.get(waiter);
+            if (blockers == null) {
+                return;
+            }
+            for (int i = blockers.size() - 1; i >= 0; i--) {
+                if (blockers.get(i).equals(blocker)) {
+                    blockers.remove(i);
+                    incoming.computeIfPresent(blocker, (t, count) -> count == 1 ? null : count - 1);
+                }
+            }
+        }
+
+        private void unlink(List<Transaction> blockers) {
+            if (blockers == null) {
+                return;
+            }
+            for (int i = 0; i < blockers.size(); i++) {
+                incoming.computeIfPresent(blockers.get(i), (blocker, count) -> count == 1 ? null : count - 1);
+            }
+        }
+
+        /**
+         * Depth first search for a path from the transaction back to itself.
+         * @param start transaction the cycle has to go through
+         * @return transactions on the cycle starting with start, or null
+         */
+        public synchronized List<Transaction> findCycle(Transaction start) {
+            if (!incoming.containsKey(start)) {
+                //nobody waits for it, so it can't be on a cycle
+                return null;
+            }
+            HashMap<Transaction, Transaction> cameFrom = new HashMap<Transaction, Transaction>();
+            ArrayDeque<Transaction> stack = new ArrayDeque<Transaction>();
+            cameFrom.put(start, start);
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                Transaction current = stack.pop();
+                List<Transaction> blockers = edges.get(current);
+                if (blockers == null) {
+                    continue;
+                }
+                for (Transaction blocker : blockers) {
+                    if (blocker.equals(start)) {
+                        ArrayList<Transaction> cycle = new ArrayList<Transaction>();
+                        for (Transaction t = current; !t.equals(start); t = cameFrom.get(t)) {
+                            cycle.add(0, t);
+                        }
+                        cycle.add(0, start);
+                        return cycle;
+                    }
+                    if (!cameFrom.containsKey(blocker)) {
+                        cameFrom.put(blocker, current);
+                        stack.push(blocker);
+                    }
+                }
+            }
+            return null;
+        }
     }
 
     /**
      * Contains all information about the lock for a specific resource. This
-     * information includes lock owner(s), and lock requester(s).
+     * information includes lock owner(s), and lock requester(s). Owners are
+     * also summarized as a count per lock type and a bit mask of the types
+     * currently granted, so they must be added and removed through addOwner
+     * and removeOwner. The requesters queue is a doubly linked list threaded
+     * through the requests themselves, so queueing at either end and taking
+     * out any requester (e.g. one that timed out) is O(1) and allocates
+     * nothing.
      */
     private class ResourceLock {
         private ArrayList<Request> lockOwners;
-        private LinkedList<Request> requestersQueue;
+        private Request firstRequester;
+        private Request lastRequester;
+        private int[] grantedCounts;
+        private int grantedModes;
+        private IntentCounter intents;
+        private ReaderBias bias;
+        private ResourceLock nextFree;
 
         public ResourceLock() {
-            this.lockOwners = new ArrayList<Request>();
-            this.requestersQueue = new LinkedList<Request>();
+            //most resources have one or two owners at a time
+            this.lockOwners = new ArrayList<Request>(2);
+            this.grantedCounts = new int[CONFLICTS.length];
+        }
+
+        public boolean hasRequesters() {
+            return firstRequester != null;
+        }
+
+        /**
+         * @return bit mask of the intent modes held through the intent counter
+         */
+        public int intentModes() {
+            return intents == null ? 0 : intents.modes();
+        }
+
+        /**
+         * @return bit mask of S if a reader slot is taken, 0 otherwise
+         */
+        public int readerModes() {
+            return bias == null || !bias.hasReaders() ? 0 : 1 << LockType.S.ordinal();
+        }
+
+        /**
+         * @param requester to queue
+         * @param first whether it goes to the head of the queue instead of
+         * the tail
+         */
+        public void addRequester(Request requester, boolean first) {
+            if (firstRequester == null) {
+                firstRequester = requester;
+                lastRequester = requester;
+            } else if (first) {
+                requester.nextRequester = firstRequester;
+                firstRequester.prevRequester = requester;
+                firstRequester = requester;
+            } else {
+                requester.prevRequester = lastRequester;
+                lastRequester.nextRequester = requester;
+                lastRequester = requester;
+            }
+        }
+
+        /**
+         * @param requester currently in this queue
+         */
+        public void removeRequester(Request requester) {
+            if (requester.prevRequester == null) {
+                firstRequester = requester.nextRequester;
+            } else {
+                requester.prevRequester.nextRequester = requester.nextRequester;
+            }
+            if (requester.nextRequester == null) {
+                lastRequester = requester.prevRequester;
+            } else {
+                requester.nextRequester.prevRequester = requester.prevRequester;
+            }
+            requester.prevRequester = null;
+            requester.nextRequester = null;
+        }
+
+        public void addOwner(Request owner) {
+            owner.ownerIndex = lockOwners.size();
+            lockOwners.add(owner);
+            int ordinal = owner.lockType.ordinal();
+            if (grantedCounts[ordinal]++ == 0) {
+                grantedModes |= 1 << ordinal;
+            }
         }
 
+        /**
+         * Removes the owner in O(1) by moving the last owner into its slot,
+         * so the order of lockOwners changes.
+         * @param owner to remove
+         */
+        public void removeOwner(Request owner) {
+            int index = owner.ownerIndex;
+            if (index >= lockOwners.size() || lockOwners.get(index) != owner) {
+                return;
+            }
+            Request moved = lockOwners.remove(lockOwners.size() - 1);
+            if (moved != owner) {
+                lockOwners.set(index, moved);
+                moved.ownerIndex = index;
+            }
+            int ordinal = owner.lockType.ordinal();
+            if (--grantedCounts[ordinal] == 0) {
+                grantedModes &= ~(1 << ordinal);
+            }
+        }
     }
 
     /**
@@ -298,6 +2947,19 @@ public class LockManager {
     private class Request {
         private Transaction transaction;
         private LockType lockType;
+        private Resource resource;
+        private Request upgradeFrom;
+        private volatile boolean granted;
+        private volatile boolean aborted;
+        private boolean cancelled;
+        private volatile Thread waiter;
+        private CompletableFuture<Void> future;
+        private int ownerIndex;
+        private Request prevRequester;
+        private Request nextRequester;
+        private Request nextGranted;
+        private boolean recyclable;
+        private Request nextFree;
 
         public Request(Transaction transaction, LockType lockType) {
             this.transaction = transaction;
@@ -1,11 +1,25 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Page implements Resource {
   private String pageName;
   private Table table;
+  private Set<Row> rows;
+  private Map<String, Row> rowsByName;
+  private ResourceCatalog catalog;
+  private long id;
+  private int hash;
 
   public Page (String pageName, Table table) {
     this.pageName = pageName;
     this.table = table;
+    this.rows = new HashSet<Row>();
+    this.rowsByName = new HashMap<String, Row>();
+    this.catalog = table.getCatalog();
+    this.id = catalog.idOf(table, ResourceType.PAGE, pageName);
+    this.hash = ResourceCatalog.hash(id);
     this.table.addPage(this);
   }
 
@@ -21,6 +35,31 @@ public class Page implements Resource {
     return this.table.getTableName();
   }
 
+  public Set<Row> getRows() {
+    return this.rows;
+  }
+
+  public Row getRow(String rowName) {
+    return rowsByName.get(rowName);
+  }
+
+  public void addRow(Row r) {
+    rows.add(r);
+    rowsByName.putIfAbsent(r.getName(), r);
+  }
+
+  ResourceCatalog getCatalog() {
+    return this.catalog;
+  }
+
+  public long getId() {
+    return this.id;
+  }
+
+  public Resource getParent() {
+    return this.table;
+  }
+
   public ResourceType getResourceType() {
     return ResourceType.PAGE;
   }
@@ -30,12 +69,17 @@ public class Page implements Resource {
     if (o == null) {
       return false;
     } else if (o instanceof Page) {
-      return ((Page) o).getTable().equals(this.table) && ((Page) o).getName() == this.pageName;
+      return ((Page) o).getId() == this.id;
     } else {
       return false;
     }
   }
 
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
   @Override
   public String toString() {
     return String.format(
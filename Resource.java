@@ -1,14 +1,36 @@
 public interface Resource {
 
   public enum ResourceType {
+    DATABASE,
     TABLE,
-    PAGE
+    PAGE,
+    ROW
   }
 
   public ResourceType getResourceType();
 
   public String getTableName();
 
+  /**
+   * @return the id the ResourceCatalog assigned to this resource; resources
+   * are equal exactly when their ids are
+   */
+  public long getId();
+
+  /**
+   * @return the resource this one is nested in (the database of a table, the
+   * table of a page, the page of a row), or null for a root
+   */
+  public Resource getParent();
+
+  /**
+   * @return how many ancestors this resource has, 0 for a root
+   */
+  public default int getDepth() {
+    Resource parent = getParent();
+    return parent == null ? 0 : parent.getDepth() + 1;
+  }
+
   @Override
   public boolean equals(Object o);
 
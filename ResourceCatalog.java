@@ -0,0 +1,173 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Interns resource identities. Every resource is identified by its type, its
+ * name and its parent, and gets one id per identity, so two Table objects
+ * with the same name share an id and compare equal by comparing ids.
+ * Resources precompute their hash from the id, which keeps equals and
+ * hashCode off the String contents in the Lock Manager's hot path.
+ *
+ * There is one catalog per root (a database, or a table created without
+ * one), holding the ids of everything below it and a canonical instance per
+ * identity, which the static factories return. Every resource of the tree
+ * references its catalog, and the catalogs are only weakly known by root
+ * name, so a tree's ids go away with the last of its resources. A root
+ * created again after that gets new ids, which is fine since nothing still
+ * alive can compare equal to them.
+ */
+public final class ResourceCatalog {
+
+    private static final ConcurrentHashMap<Key, CatalogRef> roots = new ConcurrentHashMap<Key, CatalogRef>();
+    private static final ReferenceQueue<ResourceCatalog> unreachable = new ReferenceQueue<ResourceCatalog>();
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long rootId;
+    private final ConcurrentHashMap<Key, Long> ids = new ConcurrentHashMap<Key, Long>();
+    private final ConcurrentHashMap<Long, Resource> instances = new ConcurrentHashMap<Long, Resource>();
+
+    private ResourceCatalog() {
+        this.rootId = nextId.incrementAndGet();
+    }
+
+    public static Database database(String databaseName) {
+        ResourceCatalog catalog = of(null, Resource.ResourceType.DATABASE, databaseName);
+        return (Database) catalog.instances.computeIfAbsent(catalog.rootId, k -> new Database(databaseName));
+    }
+
+    public static Table table(String tableName) {
+        ResourceCatalog catalog = of(null, Resource.ResourceType.TABLE, tableName);
+        return (Table) catalog.instances.computeIfAbsent(catalog.rootId, k -> new Table(tableName));
+    }
+
+    public static Table table(String tableName, Database database) {
+        ResourceCatalog catalog = database.getCatalog();
+        long id = catalog.idOf(database, Resource.ResourceType.TABLE, tableName);
+        return (Table) catalog.instances.computeIfAbsent(id, k -> new Table(tableName, database));
+    }
+
+    public static Page page(String pageName, Table table) {
+        ResourceCatalog catalog = table.getCatalog();
+        long id = catalog.idOf(table, Resource.ResourceType.PAGE, pageName);
+        return (Page) catalog.instances.computeIfAbsent(id, k -> new Page(pageName, table));
+    }
+
+    public static Row row(String rowName, Page page) {
+        ResourceCatalog catalog = page.getCatalog();
+        long id = catalog.idOf(page, Resource.ResourceType.ROW, rowName);
+        return (Row) catalog.instances.computeIfAbsent(id, k -> new Row(rowName, page));
+    }
+
+    /**
+     * @param parent of the resource, or null for a root
+     * @param type of the resource
+     * @param name of the resource
+     * @return the catalog of the tree the resource belongs to, which is
+     * created the first time a root is seen
+     */
+    static ResourceCatalog of(Resource parent, Resource.ResourceType type, String name) {
+        if (parent != null) {
+            switch (parent.getResourceType()) {
+                case DATABASE:
+                    return ((Database) parent).getCatalog();
+                case TABLE:
+                    return ((Table) parent).getCatalog();
+                case PAGE:
+                    return ((Page) parent).getCatalog();
+                default:
+                    throw new IllegalArgumentException("Rows have no children");
+            }
+        }
+        expungeUnreachable();
+        Key key = new Key(0, type, name);
+        while (true) {
+            CatalogRef ref = roots.get(key);
+            ResourceCatalog catalog = ref == null ? null : ref.get();
+            if (catalog != null) {
+                return catalog;
+            }
+            catalog = new ResourceCatalog();
+            CatalogRef created = new CatalogRef(key, catalog);
+            if (ref == null ? roots.putIfAbsent(key, created) == null : roots.replace(key, ref, created)) {
+                return catalog;
+            }
+        }
+    }
+
+    /**
+     * @param parent of the resource, or null for the root of this catalog
+     * @param type of the resource
+     * @param name of the resource
+     * @return the id of the resource, assigned the first time it is seen
+     */
+    long idOf(Resource parent, Resource.ResourceType type, String name) {
+        if (parent == null) {
+            return rootId;
+        }
+        Key key = new Key(parent.getId(), type, name);
+        Long id = ids.get(key);
+        if (id == null) {
+            id = ids.computeIfAbsent(key, k -> nextId.incrementAndGet());
+        }
+        return id;
+    }
+
+    /**
+     * Drops the root names whose catalogs were collected.
+     */
+    private static void expungeUnreachable() {
+        CatalogRef ref;
+        while ((ref = (CatalogRef) unreachable.poll()) != null) {
+            roots.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * Spreads the bits of an id so that consecutive ids land in different
+     * buckets and stripes.
+     * @param id of a resource
+     * @return hash of the id
+     */
+    static int hash(long id) {
+        id = (id ^ (id >>> 33)) * 0xff51afd7ed558ccdL;
+        id = (id ^ (id >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (id ^ (id >>> 33));
+    }
+
+    private static class CatalogRef extends WeakReference<ResourceCatalog> {
+        private final Key key;
+
+        CatalogRef(Key key, ResourceCatalog catalog) {
+            super(catalog, unreachable);
+            this.key = key;
+        }
+    }
+
+    private static class Key {
+        private final long parentId;
+        private final Resource.ResourceType type;
+        private final String name;
+
+        Key(long parentId, Resource.ResourceType type, String name) {
+            this.parentId = parentId;
+            this.type = type;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return other.parentId == parentId && other.type == type && other.name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(parentId) * 31 + type.hashCode()) * 31 + name.hashCode();
+        }
+    }
+}
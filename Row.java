@@ -0,0 +1,61 @@
+public class Row implements Resource {
+  private String rowName;
+  private Page page;
+  private long id;
+  private int hash;
+
+  public Row (String rowName, Page page) {
+    this.rowName = rowName;
+    this.page = page;
+    this.id = page.getCatalog().idOf(page, ResourceType.ROW, rowName);
+    this.hash = ResourceCatalog.hash(id);
+    this.page.addRow(this);
+  }
+
+  public String getName() {
+    return this.rowName;
+  }
+
+  public Page getPage() {
+    return this.page;
+  }
+
+  public String getTableName() {
+    return this.page.getTableName();
+  }
+
+  public long getId() {
+    return this.id;
+  }
+
+  public Resource getParent() {
+    return this.page;
+  }
+
+  public ResourceType getResourceType() {
+    return ResourceType.ROW;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == null) {
+      return false;
+    } else if (o instanceof Row) {
+      return ((Row) o).getId() == this.id;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+            "Row<table=%s, page=%s, row=%s>",
+            this.getTableName(), this.page.getName(), rowName);
+  }
+}
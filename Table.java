@@ -1,35 +1,69 @@
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
 public class Table implements Resource{
     private String tableName;
+    private Database database;
     private Set<Page> pages;
+    private Map<String, Page> pagesByName;
+    private ResourceCatalog catalog;
+    private long id;
+    private int hash;
 
     public Table (String tableName) {
+        this(tableName, null);
+    }
+
+    public Table (String tableName, Database database) {
         this.tableName = tableName;
+        this.database = database;
         this.pages = new HashSet<Page>();
+        this.pagesByName = new HashMap<String, Page>();
+        this.catalog = ResourceCatalog.of(database, ResourceType.TABLE, tableName);
+        this.id = catalog.idOf(database, ResourceType.TABLE, tableName);
+        this.hash = ResourceCatalog.hash(id);
+        if (this.database != null) {
+            this.database.addTable(this);
+        }
     }
 
     public String getTableName() {
         return this.tableName;
     }
 
+    /**
+     * @return the database of the table, or null if it was created without one
+     */
+    public Database getDatabase() {
+        return this.database;
+    }
+
     public Set<Page> getPages() {
         return this.pages;
     }
 
     public Page getPage(String pageName) {
-        for (Page p : pages) {
-            if (p.getName() == pageName && p.getTableName() == this.tableName) {
-                return p;
-            }
-        }
-        return null;
+        return pagesByName.get(pageName);
     }
 
     public void addPage(Page p) {
         pages.add(p);
+        pagesByName.putIfAbsent(p.getName(), p);
+    }
+
+    ResourceCatalog getCatalog() {
+        return this.catalog;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public Resource getParent() {
+        return this.database;
     }
 
     public ResourceType getResourceType() {
@@ -41,10 +75,15 @@ public class Table implements Resource{
         if (o == null) {
             return false;
         } else if (o instanceof Table) {
-            return ((Table) o).getTableName() == this.tableName;
+            return ((Table) o).getId() == this.id;
         } else {
             return false;
         }
     }
 
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
 }
@@ -1,7 +1,7 @@
 public class Transaction {
     private String name;
     private int timestamp;
-    private Status status;
+    private volatile Status status;
 
     public enum Status {
         Running,
@@ -35,17 +35,35 @@ public class Transaction {
         return this.name;
     }
 
-    public void wake() {this.status = Status.Running;}
+    /**
+     * Moves a waiting transaction back to Running. A transaction that is
+     * being aborted stays Aborting until it has released its locks.
+     */
+    public synchronized void wake() {
+        if (this.status == Status.Waiting) {
+            this.status = Status.Running;
+        }
+    }
 
-    public void sleep() {this.status = Status.Waiting;}
+    /**
+     * Moves the transaction to Waiting, unless it is being aborted.
+     * @return false if the transaction is Aborting and must not wait
+     */
+    public synchronized boolean sleep() {
+        if (this.status == Status.Aborting) {
+            return false;
+        }
+        this.status = Status.Waiting;
+        return true;
+    }
 
-    public  void abort() {this.status = Status.Aborting;}
+    public synchronized void abort() {this.status = Status.Aborting;}
 
     public Status getStatus() {
         return this.status;
     }
 
-    public void setStatus(Status status) {
+    public synchronized void setStatus(Status status) {
         this.status = status;
     }
 
@@ -64,4 +82,9 @@ public class Transaction {
             return false;
         }
     }
+
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
 }
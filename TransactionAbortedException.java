@@ -0,0 +1,14 @@
+/**
+ * Thrown to a transaction waiting on a lock when the Lock Manager aborts it,
+ * e.g. to break or prevent a deadlock. The transaction's status is Aborting by then and
+ * it still owns the locks it was granted before; it is expected to release
+ * them.
+ */
+public class TransactionAbortedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransactionAbortedException(String message) {
+        super(message);
+    }
+}
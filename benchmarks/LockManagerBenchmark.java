@@ -0,0 +1,423 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Micro benchmarks for the Lock Manager hot paths: acquire, release, promote
+ * and holds. Each benchmark is warmed up, then measured over a few fixed
+ * length iterations, and reports operations per second and bytes allocated
+ * per operation (from the per-thread allocation counters of the JVM).
+ * LockTableFootprint then reports the heap retained per held page lock.
+ * Benchmarks marked allocation free fail the run if they allocate at all.
+ *
+ * The classes of the lock manager live in the default package, so this is a
+ * plain main class rather than a JMH module. Run it from the repository root:
+ *
+ *   javac -d out *.java benchmarks/*.java
+ *   java -cp out LockManagerBenchmark [benchmark names...]
+ */
+public class LockManagerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 1000;
+    private static final int FOOTPRINT_PAGES = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new UncontendedAcquireRelease());
+        benchmarks.add(new UncontendedHolds());
+        benchmarks.add(new UncontendedPageAcquireRelease());
+        benchmarks.add(new HotTableIntentFanIn());
+        benchmarks.add(new ReaderBiasedPageFanIn());
+        benchmarks.add(new PageScan());
+        benchmarks.add(new UpgradeSharedToExclusive());
+        benchmarks.add(new DeepQueuePromotion());
+
+        System.out.println(String.format("%-32s %8s %16s %12s", "Benchmark", "Threads", "ops/s", "B/op"));
+        for (Benchmark benchmark : benchmarks) {
+            if (args.length > 0 && !contains(args, benchmark.name())) {
+                continue;
+            }
+            Result result = run(benchmark);
+            System.out.println(String.format("%-32s %8d %16.0f %12.1f",
+                    benchmark.name(), benchmark.threads, result.opsPerSecond, result.bytesPerOp));
+            if (benchmark.allocationFree && result.bytesPerOp >= 1) {
+                throw new IllegalStateException(benchmark.name() + " allocates " + result.bytesPerOp + " B/op");
+            }
+        }
+        if (args.length == 0 || contains(args, "LockTableFootprint")) {
+            System.out.println(String.format("%-32s %8s %16s %12.1f",
+                    "LockTableFootprint", "-", "-", lockTableFootprint()));
+        }
+    }
+
+    /**
+     * Locks FOOTPRINT_PAGES pages under one table and measures how much more
+     * heap is live while the locks are held than before they were taken. The
+     * pages themselves are created up front and are not counted.
+     * @return bytes retained per held page lock
+     */
+    private static double lockTableFootprint() {
+        LockManager lockManager = new LockManager(64);
+        Transaction transaction = new Transaction("footprint", 1);
+        Table table = new Table("footprint");
+        Page[] pages = new Page[FOOTPRINT_PAGES];
+        for (int i = 0; i < FOOTPRINT_PAGES; i++) {
+            pages[i] = new Page("page-" + i, table);
+        }
+        long before = usedHeap();
+        lockManager.acquire(transaction, table, LockManager.LockType.IS);
+        for (Page page : pages) {
+            lockManager.acquire(transaction, page, LockManager.LockType.S);
+        }
+        long after = usedHeap();
+        if (!lockManager.holds(transaction, pages[0], LockManager.LockType.S)) {
+            throw new IllegalStateException("lock lost");
+        }
+        return (double) (after - before) / FOOTPRINT_PAGES;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String n : names) {
+            if (n.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Result run(Benchmark benchmark) throws Exception {
+        benchmark.setup();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(benchmark);
+        }
+        double ops = 0;
+        double seconds = 0;
+        double bytes = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            Result result = iteration(benchmark);
+            ops += result.ops;
+            seconds += result.seconds;
+            bytes += result.bytes;
+        }
+        Result total = new Result();
+        total.opsPerSecond = ops / seconds;
+        total.bytesPerOp = bytes / ops;
+        return total;
+    }
+
+    /**
+     * Runs every thread of the benchmark for ITERATION_MILLIS and sums up the
+     * operations they did and the bytes they allocated.
+     */
+    private static Result iteration(Benchmark benchmark) throws Exception {
+        int threads = benchmark.threads;
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] ops = new long[threads];
+        long[] bytes = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread(() -> {
+                com.sun.management.ThreadMXBean bean =
+                        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                long allocatedBefore = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long count = 0;
+                while (running.get()) {
+                    count += benchmark.operation(index);
+                }
+                bytes[index] = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+                ops[index] = count;
+            });
+            workers[t].start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        Thread.sleep(ITERATION_MILLIS);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - begin) / 1e9;
+        for (int t = 0; t < threads; t++) {
+            result.ops += ops[t];
+            result.bytes += bytes[t];
+        }
+        return result;
+    }
+
+    private static class Result {
+        private double ops;
+        private double seconds;
+        private double bytes;
+        private double opsPerSecond;
+        private double bytesPerOp;
+    }
+
+    /**
+     * A benchmark is run by a fixed number of threads, each calling operation
+     * in a loop with its own thread index.
+     */
+    private abstract static class Benchmark {
+        protected int threads = 1;
+        protected boolean allocationFree = false;
+
+        public String name() {
+            return getClass().getSimpleName();
+        }
+
+        public void setup() {
+        }
+
+        /**
+         * @param thread index of the calling thread
+         * @return number of lock operations performed
+         */
+        public abstract long operation(int thread);
+    }
+
+    /** One transaction taking and dropping an X lock nobody else wants. */
+    private static class UncontendedAcquireRelease extends Benchmark {
+        private LockManager lockManager;
+        private Transaction transaction;
+        private Table table;
+
+        public UncontendedAcquireRelease() {
+            this.allocationFree = true;
+        }
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager();
+            transaction = new Transaction("uncontended", 1);
+            table = new Table("uncontended");
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(transaction, table, LockManager.LockType.X);
+            lockManager.release(transaction, table);
+            return 2;
+        }
+    }
+
+    /** holds on a lock the transaction owns. */
+    private static class UncontendedHolds extends Benchmark {
+        private LockManager lockManager;
+        private Transaction transaction;
+        private Table table;
+
+        public UncontendedHolds() {
+            this.allocationFree = true;
+        }
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager();
+            transaction = new Transaction("holds", 1);
+            table = new Table("holds");
+            lockManager.acquire(transaction, table, LockManager.LockType.IX);
+        }
+
+        @Override
+        public long operation(int thread) {
+            if (!lockManager.holds(transaction, table, LockManager.LockType.IX)) {
+                throw new IllegalStateException("lock lost");
+            }
+            return 1;
+        }
+    }
+
+    /** An X lock on a page nobody else wants, under an IX lock on its table. */
+    private static class UncontendedPageAcquireRelease extends Benchmark {
+        private LockManager lockManager;
+        private Transaction transaction;
+        private Page page;
+
+        public UncontendedPageAcquireRelease() {
+            this.allocationFree = true;
+        }
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager(64);
+            transaction = new Transaction("page", 1);
+            Table table = new Table("paged");
+            page = new Page("page", table);
+            lockManager.acquire(transaction, table, LockManager.LockType.IX);
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(transaction, page, LockManager.LockType.X);
+            lockManager.release(transaction, page);
+            return 2;
+        }
+    }
+
+    /** Every core taking and dropping IS or IX on the same table. */
+    private static class HotTableIntentFanIn extends Benchmark {
+        private LockManager lockManager;
+        private Transaction[] transactions;
+        private Table table;
+
+        public HotTableIntentFanIn() {
+            this.threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager(64);
+            table = new Table("hot");
+            transactions = new Transaction[threads];
+            for (int t = 0; t < threads; t++) {
+                transactions[t] = new Transaction("fan-in-" + t, t);
+            }
+        }
+
+        @Override
+        public long operation(int thread) {
+            LockManager.LockType lockType = thread % 2 == 0 ? LockManager.LockType.IS : LockManager.LockType.IX;
+            lockManager.acquire(transactions[thread], table, lockType);
+            lockManager.release(transactions[thread], table);
+            return 2;
+        }
+    }
+
+    /** Every core taking and dropping S on the same reader biased page. */
+    private static class ReaderBiasedPageFanIn extends Benchmark {
+        private LockManager lockManager;
+        private Transaction[] transactions;
+        private Page page;
+
+        public ReaderBiasedPageFanIn() {
+            this.threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager(64);
+            Table table = new Table("catalog");
+            page = new Page("catalog-page", table);
+            lockManager.setReaderBiased(page, true);
+            transactions = new Transaction[threads];
+            for (int t = 0; t < threads; t++) {
+                transactions[t] = new Transaction("reader-" + t, t);
+                lockManager.acquire(transactions[t], table, LockManager.LockType.IS);
+            }
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(transactions[thread], page, LockManager.LockType.S);
+            lockManager.release(transactions[thread], page);
+            return 2;
+        }
+    }
+
+    /** A transaction locking every page of a large table, then releasing them all. */
+    private static class PageScan extends Benchmark {
+        private static final int NUM_PAGES = 4096;
+        private LockManager lockManager;
+        private Transaction transaction;
+        private Table table;
+        private Page[] pages;
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager(64);
+            transaction = new Transaction("scan", 1);
+            table = new Table("scanned");
+            pages = new Page[NUM_PAGES];
+            for (int i = 0; i < NUM_PAGES; i++) {
+                pages[i] = new Page("page-" + i, table);
+            }
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(transaction, table, LockManager.LockType.IS);
+            for (Page page : pages) {
+                lockManager.acquire(transaction, page, LockManager.LockType.S);
+            }
+            lockManager.releaseAll(transaction);
+            return 2 * (NUM_PAGES + 1);
+        }
+    }
+
+    /** S, upgraded to X, then released. */
+    private static class UpgradeSharedToExclusive extends Benchmark {
+        private LockManager lockManager;
+        private Transaction transaction;
+        private Table table;
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager();
+            transaction = new Transaction("upgrade", 1);
+            table = new Table("upgraded");
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(transaction, table, LockManager.LockType.S);
+            lockManager.acquire(transaction, table, LockManager.LockType.X);
+            lockManager.release(transaction, table);
+            return 3;
+        }
+    }
+
+    /**
+     * An X owner releasing a table with a deep queue of S requests behind it,
+     * which are all promoted at once and then released.
+     */
+    private static class DeepQueuePromotion extends Benchmark {
+        private static final int QUEUE_DEPTH = 1024;
+        private LockManager lockManager;
+        private Transaction owner;
+        private Transaction[] readers;
+        private Table table;
+
+        @Override
+        public void setup() {
+            lockManager = new LockManager();
+            owner = new Transaction("writer", 0);
+            table = new Table("queued");
+            readers = new Transaction[QUEUE_DEPTH];
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                readers[i] = new Transaction("reader-" + i, i + 1);
+            }
+        }
+
+        @Override
+        public long operation(int thread) {
+            lockManager.acquire(owner, table, LockManager.LockType.X);
+            for (Transaction reader : readers) {
+                lockManager.acquire(reader, table, LockManager.LockType.S);
+            }
+            lockManager.release(owner, table);
+            for (Transaction reader : readers) {
+                lockManager.release(reader, table);
+            }
+            return 2 * (QUEUE_DEPTH + 1);
+        }
+    }
+}
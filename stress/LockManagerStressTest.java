@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent stress test for the Lock Manager. For each deadlock policy, a
+ * few threads run short transactions that lock random pages of one table
+ * with acquireBlocking, in random order and mixing S and X, so deadlocks
+ * (or wounds and deaths) happen all the time. Aborted transactions release
+ * everything and start over. The run fails if a transaction is granted a
+ * lock that conflicts with a lock another one holds, if a transaction that
+ * was aborted is seen Running, or if no transaction commits for a while,
+ * which means some were left waiting forever. Before that, it checks that
+ * an escalated table can't be downgraded under writes it covers.
+ *
+ * Like the benchmarks, this is a plain main class. Run it from the
+ * repository root:
+ *
+ *   javac -d out *.java stress/*.java
+ *   java -cp out LockManagerStressTest [seconds per policy [policies...]]
+ */
+public class LockManagerStressTest {
+
+    private static final int THREADS = 8;
+    private static final int PAGES = 16;
+    private static final int LOCKS_PER_TRANSACTION = 4;
+    private static final long STALL_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        checkEscalatedDowngrade();
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            if (policy == LockManager.DeadlockPolicy.NONE) {
+                //nothing breaks deadlocks, the transactions would hang
+                continue;
+            }
+            if (args.length > 1 && !Arrays.asList(args).contains(policy.name())) {
+                continue;
+            }
+            System.out.println(run(policy, seconds));
+        }
+    }
+
+    /**
+     * A transaction that wrote pages and had them escalated to X on the
+     * table must not be able to downgrade the table to S: the writes would
+     * become visible to readers of the pages while it is still running.
+     */
+    private static void checkEscalatedDowngrade() {
+        LockManager lockManager = new LockManager(8);
+        lockManager.setEscalationThreshold(2);
+        Table table = new Table("stress-escalation");
+        Transaction writer = new Transaction("writer", 1);
+        Transaction reader = new Transaction("reader", 2);
+        lockManager.acquire(writer, table, LockManager.LockType.IX);
+        lockManager.acquire(writer, new Page("page-1", table), LockManager.LockType.X);
+        lockManager.acquire(writer, new Page("page-2", table), LockManager.LockType.X);
+        //covered by the escalated table lock, no page lock is taken
+        lockManager.acquire(writer, new Page("page-3", table), LockManager.LockType.X);
+        try {
+            lockManager.downgrade(writer, table, LockManager.LockType.S);
+        } catch (IllegalArgumentException e) {
+            lockManager.releaseAll(writer);
+            return;
+        }
+        lockManager.acquire(reader, table, LockManager.LockType.IS);
+        lockManager.acquire(reader, new Page("page-3", table), LockManager.LockType.S);
+        throw new IllegalStateException("escalated table was downgraded, " + reader
+                + " can read a page " + writer + " wrote");
+    }
+
+    private static String run(LockManager.DeadlockPolicy policy, long seconds) throws Exception {
+        LockManager lockManager = new LockManager(8);
+        lockManager.setDeadlockPolicy(policy);
+        Table table = new Table("stress-" + policy);
+        Page[] pages = new Page[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = new Page("page-" + i, table);
+        }
+        //writers and readers currently holding each page, to catch conflicts
+        AtomicLong[] holders = new AtomicLong[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            holders[i] = new AtomicLong();
+        }
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        AtomicLong timestamps = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end && failure.get() == null) {
+                        int timestamp = (int) timestamps.incrementAndGet();
+                        Transaction transaction = new Transaction("tx" + timestamp, timestamp);
+                        if (runTransaction(lockManager, transaction, table, pages, holders)) {
+                            commits.incrementAndGet();
+                        } else {
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long lastCommits = -1;
+        long lastProgress = System.currentTimeMillis();
+        while (threads.stream().anyMatch(Thread::isAlive) && failure.get() == null) {
+            Thread.sleep(100);
+            if (commits.get() != lastCommits) {
+                lastCommits = commits.get();
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress > STALL_MILLIS) {
+                for (Thread thread : threads) {
+                    System.err.println(thread.getName());
+                    for (StackTraceElement frame : thread.getStackTrace()) {
+                        System.err.println("    at " + frame);
+                    }
+                }
+                throw new IllegalStateException(policy + ": no transaction committed for "
+                        + STALL_MILLIS + " ms, some are waiting forever");
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(policy + " failed", failure.get());
+        }
+        return String.format("%-12s %12d commits %12d aborts", policy, commits.get(), aborts.get());
+    }
+
+    /**
+     * @return true if the transaction committed, false if it was aborted
+     */
+    private static boolean runTransaction(LockManager lockManager, Transaction transaction, Table table,
+                                          Page[] pages, AtomicLong[] holders) throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] locked = new int[LOCKS_PER_TRANSACTION];
+        boolean[] exclusive = new boolean[LOCKS_PER_TRANSACTION];
+        int numLocked = 0;
+        try {
+            lockManager.acquireBlocking(transaction, table, LockManager.LockType.IX);
+            for (int i = 0; i < LOCKS_PER_TRANSACTION; i++) {
+                int page = random.nextInt(PAGES);
+                if (lockManager.getLockedResources(transaction).contains(pages[page])) {
+                    continue;
+                }
+                boolean x = random.nextBoolean();
+                lockManager.acquireBlocking(transaction, pages[page], x ? LockManager.LockType.X : LockManager.LockType.S);
+                //writers count as 1 << 32, readers as 1
+                long held = holders[page].addAndGet(x ? 1L << 32 : 1L);
+                locked[numLocked] = page;
+                exclusive[numLocked++] = x;
+                if ((held >>> 32) > 1 || ((held >>> 32) == 1 && (held & 0xFFFFFFFFL) != 0)) {
+                    throw new IllegalStateException(transaction + " was granted a conflicting lock on " + pages[page]);
+                }
+            }
+            //wound-wait may abort it after its last lock was granted
+            return transaction.getStatus() != Transaction.Status.Aborting;
+        } catch (TransactionAbortedException e) {
+            if (transaction.getStatus() != Transaction.Status.Aborting) {
+                throw new IllegalStateException(transaction + " was aborted but is " + transaction.getStatus());
+            }
+            return false;
+        } finally {
+            for (int i = 0; i < numLocked; i++) {
+                holders[locked[i]].addAndGet(exclusive[i] ? -(1L << 32) : -1L);
+            }
+            lockManager.releaseAll(transaction);
+        }
+    }
+}